@@ -1,11 +1,14 @@
 package simpledb.buffer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
 
 import simpledb.file.Block;
 import simpledb.file.FileMgr;
+import simpledb.server.LatencyHistogram;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
@@ -14,18 +17,10 @@ import simpledb.file.FileMgr;
  * 
  */
 class BasicBufferMgr implements IStatistics {
-  private Buffer[] bufferpool;
+  protected Buffer[] bufferpool;
   protected int numAvailable;
-  /*
-   * A map which contains a mapping between the BLOCK and the BUFFER assigned to it. BLOCK ->
-   * BUFFER.
-   * 
-   * @see MRMBufferMgr
-   */
-  private HashMap<Block, Buffer> bufferPoolMap = new HashMap<Block, Buffer>();
-
-  private TreeMap<Integer, Buffer> lsnMap = new TreeMap<>();
-
+  protected LatencyHistogram pinWaits = new LatencyHistogram();
+  volatile PageCleaner cleaner;
 
   /**
    * Creates a buffer manager having the specified number of buffer slots. This constructor depends
@@ -36,25 +31,50 @@ class BasicBufferMgr implements IStatistics {
    * 
    * @param numbuffs the number of buffer slots to allocate
    */
-  // TODO: change the implementation in the childclass.
   BasicBufferMgr(int numbuffs) {
     bufferpool = new Buffer[numbuffs];
     numAvailable = numbuffs;
-    for (int i = 0; i < numbuffs; i++) {
+    for (int i = 0; i < numbuffs; i++)
       bufferpool[i] = new Buffer(this, i);
-      lsnMap.put(-1 * i, bufferpool[i]);
-    }
   }
 
   /**
-   * Flushes the dirty buffers modified by the specified transaction.
+   * Flushes the dirty buffers modified by the specified transaction. The buffers are chosen under
+   * the lock of the manager, but written as one batch after it has been released (see
+   * {@link Buffer#flush(List, int)}).
    * 
    * @param txnum the transaction's id number
    */
-  synchronized void flushAll(int txnum) {
-    for (Buffer buff : bufferpool)
-      if (buff.isModifiedBy(txnum))
-        buff.flush();
+  void flushAll(int txnum) {
+    List<Buffer> modified = new ArrayList<Buffer>();
+    synchronized (this) {
+      for (Buffer buff : bufferpool)
+        if (buff.isModifiedBy(txnum))
+          modified.add(buff);
+    }
+    Buffer.flush(modified, txnum);
+  }
+
+  /**
+   * Returns the blocks whose buffers hold logged modifications that have not been written to disk,
+   * each with the LSN of the first such modification. Each buffer is examined under its shared
+   * latch, without the lock of the manager, so that transactions keep running meanwhile.
+   * 
+   * @return the recovery LSN of each dirty block
+   */
+  Map<Block, Long> dirtyPages() {
+    Map<Block, Long> dirty = new HashMap<Block, Long>();
+    for (Buffer buff : bufferpool) {
+      buff.latchShared();
+      try {
+        long reclsn = buff.recoveryLSN();
+        if (reclsn >= 0)
+          dirty.put(buff.block(), reclsn);
+      } finally {
+        buff.unlatchShared();
+      }
+    }
+    return dirty;
   }
 
   /**
@@ -79,6 +99,31 @@ class BasicBufferMgr implements IStatistics {
     return buff;
   }
 
+  /**
+   * Pins a buffer to the specified block, waiting until a buffer becomes available. The calling
+   * thread waits on this object's monitor, which is notified whenever a buffer becomes unpinned.
+   * Returns a null value if no buffer became available within the specified time. The time spent
+   * waiting, if any, is recorded in the pin wait histogram.
+   * 
+   * @param blk a reference to a disk block
+   * @param maxtime the maximum number of milliseconds to wait
+   * @return the pinned buffer, or null
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  synchronized Buffer pin(Block blk, long maxtime) throws InterruptedException {
+    Buffer buff = pin(blk);
+    if (buff != null)
+      return buff;
+    long timestamp = System.currentTimeMillis();
+    long start = System.nanoTime();
+    while (buff == null && !waitingTooLong(timestamp, maxtime)) {
+      wait(maxtime);
+      buff = pin(blk);
+    }
+    pinWaits.record(System.nanoTime() - start);
+    return buff;
+  }
+
   /**
    * Allocates a new block in the specified file, and pins a buffer to it. Returns null (without
    * allocating the block) if there are no available buffers.
@@ -98,14 +143,43 @@ class BasicBufferMgr implements IStatistics {
   }
 
   /**
-   * Unpins the specified buffer.
+   * Allocates a new block in the specified file, and pins a buffer to it, waiting until a buffer
+   * becomes available. Returns null (without allocating the block) if no buffer became available
+   * within the specified time.
+   * 
+   * @param filename the name of the file
+   * @param fmtr a pageformatter object, used to format the new block
+   * @param maxtime the maximum number of milliseconds to wait
+   * @return the pinned buffer, or null
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  synchronized Buffer pinNew(String filename, PageFormatter fmtr, long maxtime)
+      throws InterruptedException {
+    Buffer buff = pinNew(filename, fmtr);
+    if (buff != null)
+      return buff;
+    long timestamp = System.currentTimeMillis();
+    long start = System.nanoTime();
+    while (buff == null && !waitingTooLong(timestamp, maxtime)) {
+      wait(maxtime);
+      buff = pinNew(filename, fmtr);
+    }
+    pinWaits.record(System.nanoTime() - start);
+    return buff;
+  }
+
+  /**
+   * Unpins the specified buffer. If its pin count becomes 0, then the threads waiting for a buffer
+   * are notified.
    * 
    * @param buff the buffer to be unpinned
    */
   synchronized void unpin(Buffer buff) {
     buff.unpin();
-    if (!buff.isPinned())
+    if (!buff.isPinned()) {
       numAvailable++;
+      notifyAll();
+    }
   }
 
   /**
@@ -117,6 +191,83 @@ class BasicBufferMgr implements IStatistics {
     return numAvailable;
   }
 
+  /**
+   * Returns the number of buffer slots in the pool.
+   * 
+   * @return the size of the pool
+   */
+  int size() {
+    return bufferpool.length;
+  }
+
+  /**
+   * Returns the histogram of the times that threads spent waiting for an available buffer. Pins
+   * that did not have to wait are not recorded.
+   * 
+   * @return the pin wait histogram
+   */
+  LatencyHistogram pinWaits() {
+    return pinWaits;
+  }
+
+  /**
+   * Called by a buffer when the LSN of its most recent modification changes. This manager keeps no
+   * LSN-dependent state, so the method does nothing.
+   * 
+   * @param buff the modified buffer
+   * @param oldlsn the previous LSN of the buffer
+   * @param newlsn the new LSN of the buffer
+   */
+  void lsnChanged(Buffer buff, long oldlsn, long newlsn) {}
+
+  /**
+   * Called by a buffer when it has to write its modified page before being assigned to another
+   * block. Wakes up the page cleaner, if there is one.
+   */
+  void dirtyEviction() {
+    PageCleaner c = cleaner;
+    if (c != null)
+      c.wakeUp();
+  }
+
+  /**
+   * Returns the modified buffers among the next unpinned buffers that this manager would choose
+   * as victims, in the order in which it would choose them. Used by the {@link PageCleaner} to
+   * write dirty pages before a pinning thread has to. This manager chooses the first unpinned
+   * buffer of the pool.
+   * 
+   * @param count the number of upcoming victims to examine
+   * @return the dirty buffers among them
+   */
+  synchronized List<Buffer> dirtyVictims(int count) {
+    List<Buffer> dirty = new ArrayList<Buffer>();
+    collectDirty(Arrays.asList(bufferpool), count, dirty);
+    return dirty;
+  }
+
+  /**
+   * Adds to the list the modified buffers among the first count unpinned buffers of the specified
+   * victim order.
+   * 
+   * @param order the buffers in the order in which they would be chosen as victims
+   * @param count the number of unpinned buffers to examine
+   * @param dirty the list to which the dirty buffers are added
+   * @return the number of unpinned buffers examined
+   */
+  protected static int collectDirty(Iterable<Buffer> order, int count, List<Buffer> dirty) {
+    int seen = 0;
+    for (Buffer buff : order) {
+      if (seen >= count)
+        break;
+      if (buff.isPinned())
+        continue;
+      seen++;
+      if (buff.isModified())
+        dirty.add(buff);
+    }
+    return seen;
+  }
+
   // TODO: need to add a new IMPL here.
   protected Buffer findExistingBuffer(Block blk) {
     for (Buffer buff : bufferpool) {
@@ -135,13 +286,8 @@ class BasicBufferMgr implements IStatistics {
     return null;
   }
 
-  public HashMap<Block, Buffer> getBufferPoolMap() {
-    return bufferPoolMap;
-  }
-
-
-  public TreeMap<Integer, Buffer> getLsnMap() {
-    return lsnMap;
+  private boolean waitingTooLong(long starttime, long maxtime) {
+    return System.currentTimeMillis() - starttime > maxtime;
   }
 
   @Override
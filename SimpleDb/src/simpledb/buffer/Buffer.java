@@ -1,6 +1,12 @@
 package simpledb.buffer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.server.SimpleDB;
 import simpledb.buffer.IStatistics.Stats;
@@ -12,21 +18,37 @@ import simpledb.file.*;
  * contents of the page have been modified, and if so, the id of the modifying transaction and the
  * LSN of the corresponding log record.
  * 
+ * Each buffer has a latch, a short-term read/write lock that protects the physical contents of its
+ * page. Reading a value takes the latch in shared mode, so that many transactions can read the
+ * same page in parallel; modifying the page, or assigning the buffer to another block, takes it in
+ * exclusive mode. A flush takes the latch in shared mode, so that readers are not blocked while the
+ * page is written. Latches are held only for the duration of a single physical access; they are
+ * unrelated to the transactional locks of {@link simpledb.tx.concurrency}.
+ * 
  * @author Edward Sciore
  */
 public class Buffer {
   //ArrayList<String> stats = new ArrayList<>();
 
   private Page contents = new Page();
+  private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+  private final ReentrantLock flushLock = new ReentrantLock(); // serializes flushes of the page
   private Block blk = null;
   private int pins = 0;
-  private int modifiedBy = -1; // negative means not modified
-  private int logSequenceNumber = -1; // negative means no corresponding log record
+  private volatile int modifiedBy = -1; // negative means not modified
+  private long logSequenceNumber = -1; // negative means no corresponding log record
+  private volatile long recoveryLSN = -1; // LSN of the first modification since the last write
   private BasicBufferMgr bufferMgr = null;
   private int BUFFER_ID = 0;
-  private int writes = 0; // Maintains number of times a buffer has been flushed/written to disk
-
-  private int totalFeches = 0;
+  // The counters are updated without the lock of the buffer manager that owns the buffer, since a
+  // flush holds only the latch and flush lock of the buffer; they are atomic so that no concurrent
+  // update is lost, and so that statistics can be read without any lock.
+  private final AtomicLong writes = new AtomicLong(); // times the buffer was flushed to disk
+  private final AtomicLong totalFeches = new AtomicLong(); // times the buffer was pinned
+  private final AtomicLong reads = new AtomicLong(); // blocks read from disk, i.e. misses
+  private final AtomicLong appends = new AtomicLong(); // new blocks appended through the buffer
+  private final AtomicLong evictions = new AtomicLong(); // times the block was replaced by another
+  private final AtomicLong dirtyEvictions = new AtomicLong(); // evictions that wrote the old block
 
   /**
    * Creates a new buffer, wrapping a new {@link simpledb.file.Page page}. This constructor is
@@ -51,7 +73,12 @@ public class Buffer {
    * @return the integer value at that offset
    */
   public int getInt(int offset) {
-    return contents.getInt(offset);
+    latch.readLock().lock();
+    try {
+      return contents.getInt(offset);
+    } finally {
+      latch.readLock().unlock();
+    }
   }
 
   /**
@@ -62,7 +89,28 @@ public class Buffer {
    * @return the string value at that offset
    */
   public String getString(int offset) {
-    return contents.getString(offset);
+    latch.readLock().lock();
+    try {
+      return contents.getString(offset);
+    } finally {
+      latch.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns a copy of the bytes at the specified offset of the buffer's page.
+   * 
+   * @param offset the byte offset of the page
+   * @param length the number of bytes
+   * @return the bytes at that offset
+   */
+  public byte[] getBytes(int offset, int length) {
+    latch.readLock().lock();
+    try {
+      return contents.getBytes(offset, length);
+    } finally {
+      latch.readLock().unlock();
+    }
   }
 
   /**
@@ -76,15 +124,22 @@ public class Buffer {
    * @param txnum the id of the transaction performing the modification
    * @param lsn the LSN of the corresponding log record
    */
-  public void setInt(int offset, int val, int txnum, int lsn) {
-    modifiedBy = txnum;
-    if (lsn >= 0) {
-      bufferMgr.getLsnMap().remove(logSequenceNumber);
-      logSequenceNumber = lsn;
-      bufferMgr.getLsnMap().put(logSequenceNumber, this);
-
+  public void setInt(int offset, int val, int txnum, long lsn) {
+    long oldlsn;
+    latch.writeLock().lock();
+    try {
+      modifiedBy = txnum;
+      oldlsn = logSequenceNumber;
+      if (lsn >= 0)
+        logSequenceNumber = lsn;
+      if (lsn >= 0 && recoveryLSN < 0)
+        recoveryLSN = lsn;
+      contents.setInt(offset, val);
+    } finally {
+      latch.writeLock().unlock();
     }
-    contents.setInt(offset, val);
+    if (lsn >= 0)
+      bufferMgr.lsnChanged(this, oldlsn, lsn);
   }
 
   /**
@@ -98,14 +153,82 @@ public class Buffer {
    * @param txnum the id of the transaction performing the modification
    * @param lsn the LSN of the corresponding log record
    */
-  public void setString(int offset, String val, int txnum, int lsn) {
-    modifiedBy = txnum;
-    if (lsn >= 0) {
-      bufferMgr.getLsnMap().remove(logSequenceNumber);
-      logSequenceNumber = lsn;
-      bufferMgr.getLsnMap().put(logSequenceNumber, this);
+  public void setString(int offset, String val, int txnum, long lsn) {
+    long oldlsn;
+    latch.writeLock().lock();
+    try {
+      modifiedBy = txnum;
+      oldlsn = logSequenceNumber;
+      if (lsn >= 0)
+        logSequenceNumber = lsn;
+      if (lsn >= 0 && recoveryLSN < 0)
+        recoveryLSN = lsn;
+      contents.setString(offset, val);
+    } finally {
+      latch.writeLock().unlock();
     }
-    contents.setString(offset, val);
+    if (lsn >= 0)
+      bufferMgr.lsnChanged(this, oldlsn, lsn);
+  }
+
+  /**
+   * Writes a range of bytes to the specified offset of the buffer's page. This method assumes that
+   * the transaction has already written an appropriate log record. A negative lsn value indicates
+   * that a log record was not necessary. The buffer saves the id of the transaction and the LSN of
+   * the log record.
+   * 
+   * @param offset the byte offset within the page
+   * @param val the new bytes to be written
+   * @param txnum the id of the transaction performing the modification
+   * @param lsn the LSN of the corresponding log record
+   */
+  public void setBytes(int offset, byte[] val, int txnum, long lsn) {
+    long oldlsn;
+    latch.writeLock().lock();
+    try {
+      modifiedBy = txnum;
+      oldlsn = logSequenceNumber;
+      if (lsn >= 0)
+        logSequenceNumber = lsn;
+      if (lsn >= 0 && recoveryLSN < 0)
+        recoveryLSN = lsn;
+      contents.setBytes(offset, val);
+    } finally {
+      latch.writeLock().unlock();
+    }
+    if (lsn >= 0)
+      bufferMgr.lsnChanged(this, oldlsn, lsn);
+  }
+
+  /**
+   * Acquires the buffer's latch in shared mode. A caller that reads several values of the page
+   * can use it to see them as of a single moment.
+   */
+  public void latchShared() {
+    latch.readLock().lock();
+  }
+
+  /**
+   * Releases the buffer's latch in shared mode.
+   */
+  public void unlatchShared() {
+    latch.readLock().unlock();
+  }
+
+  /**
+   * Acquires the buffer's latch in exclusive mode. A transaction holds it while it logs and makes a
+   * modification, so that no other thread sees the page between the two. The latch is reentrant,
+   * and its holder can also read and modify the page.
+   */
+  public void latchExclusive() {
+    latch.writeLock().lock();
+  }
+
+  /**
+   * Releases the buffer's latch in exclusive mode.
+   */
+  public void unlatchExclusive() {
+    latch.writeLock().unlock();
   }
 
   /**
@@ -117,29 +240,142 @@ public class Buffer {
     return blk;
   }
 
+  /**
+   * Returns the LSN of the most recent log record for a modification of this buffer.
+   * 
+   * @return the LSN, or a negative value if the buffer has no corresponding log record
+   */
+  long logSequenceNumber() {
+    return logSequenceNumber;
+  }
+
+  /**
+   * Returns the LSN of the first log record for a modification of this buffer since its page was
+   * last written. Recovery must redo the log from this LSN on to rebuild the page; a checkpoint
+   * records it in its dirty-page table.
+   * 
+   * @return the LSN, or a negative value if the page has no unwritten logged modification
+   */
+  long recoveryLSN() {
+    return recoveryLSN;
+  }
+
+  /**
+   * Returns the id of this buffer within its buffer pool.
+   * 
+   * @return the buffer id
+   */
+  int id() {
+    return BUFFER_ID;
+  }
+
   /**
    * Writes the page to its disk block if the page is dirty. The method ensures that the
    * corresponding log record has been written to disk prior to writing the page to disk.
+   * The page is written under the shared latch, so that a flush by the {@link PageCleaner} cannot
+   * lose a concurrent modification; concurrent flushes of the buffer are serialized.
    */
   void flush() {
-    if (modifiedBy >= 0) {
-      SimpleDB.logMgr().flush(logSequenceNumber);
-      contents.write(blk);
-      modifiedBy = -1;
-      writes++;
-      // stats.add("[" + BUFFER_ID + "]" + " Writing block " + blk.number() + " to disk");
-      // stats.add("[" + BUFFER_ID + "]" + " Number of writes : " + writes);
-      // TODO: Task3 can go here.
+    latch.readLock().lock();
+    flushLock.lock();
+    try {
+      if (modifiedBy >= 0) {
+        SimpleDB.logMgr().flush(logSequenceNumber);
+        contents.write(blk);
+        modifiedBy = -1;
+        recoveryLSN = -1;
+        writes.incrementAndGet();
+        // stats.add("[" + BUFFER_ID + "]" + " Writing block " + blk.number() + " to disk");
+        // stats.add("[" + BUFFER_ID + "]" + " Number of writes : " + writes);
+        // TODO: Task3 can go here.
+      }
+    } finally {
+      flushLock.unlock();
+      latch.readLock().unlock();
     }
   }
 
+  /**
+   * Writes the pages of the specified buffers that are still dirty due to a modification by the
+   * specified transaction. The log is flushed once, up to the highest LSN among them, and the
+   * pages of consecutive blocks of a file are written with a single gathering write. All of the
+   * buffers are latched in shared mode for the duration, in the order of their ids, so that two
+   * batches cannot deadlock; a buffer that was reassigned or flushed in the meantime is skipped.
+   * 
+   * @param buffs the buffers to flush
+   * @param txnum the id of the transaction whose modifications are flushed
+   * @return the number of pages written
+   */
+  static int flush(List<Buffer> buffs, int txnum) {
+    List<Buffer> locked = new ArrayList<Buffer>(buffs);
+    Collections.sort(locked, BY_ID);
+    for (Buffer buff : locked) {
+      buff.latch.readLock().lock();
+      buff.flushLock.lock();
+    }
+    try {
+      List<Buffer> dirty = new ArrayList<Buffer>();
+      long maxlsn = -1;
+      for (Buffer buff : locked) {
+        if (buff.modifiedBy == txnum) {
+          dirty.add(buff);
+          maxlsn = Math.max(maxlsn, buff.logSequenceNumber);
+        }
+      }
+      if (dirty.isEmpty())
+        return 0;
+      SimpleDB.logMgr().flush(maxlsn);
+      Collections.sort(dirty, BY_BLOCK);
+      int start = 0;
+      for (int i = 1; i <= dirty.size(); i++) {
+        if (i < dirty.size() && follows(dirty.get(i - 1).blk, dirty.get(i).blk))
+          continue;
+        Page[] pages = new Page[i - start];
+        for (int j = start; j < i; j++)
+          pages[j - start] = dirty.get(j).contents;
+        Page.write(dirty.get(start).blk, pages);
+        start = i;
+      }
+      for (Buffer buff : dirty) {
+        buff.modifiedBy = -1;
+        buff.recoveryLSN = -1;
+        buff.writes.incrementAndGet();
+      }
+      return dirty.size();
+    } finally {
+      for (Buffer buff : locked) {
+        buff.flushLock.unlock();
+        buff.latch.readLock().unlock();
+      }
+    }
+  }
+
+  private static boolean follows(Block prev, Block next) {
+    return prev.fileName().equals(next.fileName()) && prev.number() + 1 == next.number();
+  }
+
+  private static final Comparator<Buffer> BY_ID = new Comparator<Buffer>() {
+    @Override
+    public int compare(Buffer b1, Buffer b2) {
+      return Integer.compare(b1.BUFFER_ID, b2.BUFFER_ID);
+    }
+  };
+
+  private static final Comparator<Buffer> BY_BLOCK = new Comparator<Buffer>() {
+    @Override
+    public int compare(Buffer b1, Buffer b2) {
+      int c = b1.blk.fileName().compareTo(b2.blk.fileName());
+      return c != 0 ? c : Integer.compare(b1.blk.number(), b2.blk.number());
+    }
+  };
+
   /**
    * Increases the buffer's pin count.
    */
   void pin() {
     pins++;
     // stats.add("[" + BUFFER_ID + "]" + " Number of reads : " + pins);
-    totalFeches++;
+    totalFeches.incrementAndGet();
   }
 
   /**
@@ -147,12 +383,47 @@ public class Buffer {
    */
   void unpin() {
     pins--;
-    if (!isPinned()) {
-      bufferMgr.getLsnMap().put(logSequenceNumber, this);
-    }
     // stats.add("[" + BUFFER_ID + "]" + " Number of reads : " + pins);
   }
 
+  /**
+   * Writes the page to its disk block if the page is dirty, and tells whether it was.
+   * 
+   * @return true if the page was written
+   */
+  boolean clean() {
+    latch.readLock().lock();
+    flushLock.lock();
+    try {
+      if (modifiedBy < 0)
+        return false;
+      flush();
+      return true;
+    } finally {
+      flushLock.unlock();
+      latch.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the page to its disk block if the page is dirty, counting the write as a dirty
+   * eviction. Used by buffer managers that write a victim before its block is replaced.
+   */
+  void flushForEviction() {
+    latch.readLock().lock();
+    flushLock.lock();
+    try {
+      if (modifiedBy >= 0) {
+        dirtyEvictions.incrementAndGet();
+        bufferMgr.dirtyEviction();
+      }
+      flush();
+    } finally {
+      flushLock.unlock();
+      latch.readLock().unlock();
+    }
+  }
+
   /**
    * Returns true if the buffer is currently pinned (that is, if it has a nonzero pin count).
    * 
@@ -172,6 +443,16 @@ public class Buffer {
     return txnum == modifiedBy;
   }
 
+  /**
+   * Returns true if the buffer is dirty. The buffer may be modified or written as soon as the value
+   * is read, so it is only a hint.
+   * 
+   * @return true if the buffer has been modified since it was last written
+   */
+  boolean isModified() {
+    return modifiedBy >= 0;
+  }
+
   /**
    * Reads the contents of the specified block into the buffer's page. If the buffer was dirty, then
    * the contents of the previous page are first written to disk.
@@ -179,10 +460,17 @@ public class Buffer {
    * @param b a reference to the data block
    */
   void assignToBlock(Block b) {
-    flush();
-    blk = b;
-    contents.read(blk);
-    pins = 0;
+    latch.writeLock().lock();
+    try {
+      countEviction();
+      flush();
+      blk = b;
+      contents.read(blk);
+      pins = 0;
+      reads.incrementAndGet();
+    } finally {
+      latch.writeLock().unlock();
+    }
     // stats.add("[" + BUFFER_ID + "]" + "Read block " + blk.number() + " from disk");
   }
 
@@ -195,16 +483,30 @@ public class Buffer {
    * @param fmtr a page formatter, used to initialize the page
    */
   void assignToNew(String filename, PageFormatter fmtr) {
-
-    flush();
-    fmtr.format(contents);
-    blk = contents.append(filename);
-    pins = 0;
-    bufferMgr.getBufferPoolMap().put(blk, this);
-    
+    latch.writeLock().lock();
+    try {
+      countEviction();
+      flush();
+      fmtr.format(contents);
+      blk = contents.append(filename);
+      pins = 0;
+      appends.incrementAndGet();
+    } finally {
+      latch.writeLock().unlock();
+    }
     // stats.add("[" + BUFFER_ID + "]" + "Read block " + blk.number() + " from disk");
   }
 
+  private void countEviction() {
+    if (blk != null) {
+      evictions.incrementAndGet();
+      if (modifiedBy >= 0) {
+        dirtyEvictions.incrementAndGet();
+        bufferMgr.dirtyEviction();
+      }
+    }
+  }
+
   @Override
   public String toString() {
     StringBuffer str = new StringBuffer();
@@ -212,13 +514,13 @@ public class Buffer {
     return str.toString();
   }
 
+  /**
+   * Returns the current values of the buffer's counters.
+   * 
+   * @return the buffer's statistics
+   */
   public Stats getStatistics() {
-    System.out.println("======================");
-    System.out.println("BUFFER_ID :"+BUFFER_ID);
-    System.out.println("WRITES :"+writes);
-    System.out.println("TOTAL-FETCHES :"+totalFeches);
-    System.out.println("======================");
-    return null;
-    //return new Stats(writes, totalFeches, BUFFER_ID);
+    return new Stats(writes.get(), totalFeches.get(), reads.get(), appends.get(), evictions.get(),
+        dirtyEvictions.get(), BUFFER_ID);
   }
 }
@@ -2,7 +2,7 @@ package simpledb.buffer;
 
 public class BufferManagerFactory {
   public static enum BufferManagerType {
-    BASIC,LRU
+    BASIC,LRU,PARTITIONED,CLOCK,TWO_Q
   }
 
   static BasicBufferMgr getInstance(BufferManagerType type, int numbuffs) {
@@ -11,6 +11,12 @@ public class BufferManagerFactory {
         return new BasicBufferMgr(numbuffs);
       case LRU:
         return new LRUBufferMgr(numbuffs);
+      case PARTITIONED:
+        return new PartitionedBufferMgr(numbuffs);
+      case CLOCK:
+        return new ClockBufferMgr(numbuffs);
+      case TWO_Q:
+        return new TwoQBufferMgr(numbuffs);
         
         default:
           //TODO: Throw an exception
@@ -1,9 +1,12 @@
 package simpledb.buffer;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.file.Block;
 import simpledb.file.FileMgr;
+import simpledb.server.SimpleDB;
 
 /**
  * The publicly-accessible buffer manager.
@@ -19,11 +22,16 @@ import simpledb.file.FileMgr;
  * If a thread has been waiting for a buffer for an
  * excessive amount of time (currently, 10 seconds)
  * then a {@link BufferAbortException} is thrown.
+ * The waiting itself is done by the basic buffer manager,
+ * so that each implementation can decide which lock
+ * a waiting thread blocks on.
  * @author Edward Sciore
  */
 public class BufferMgr implements IStatistics{
    private static final long MAX_TIME = 10000; // 10 seconds
    private BasicBufferMgr bufferMgr;
+   private AtomicLong pinTimeouts = new AtomicLong();
+   private PageCleaner cleaner;
    
    /**
     * Creates a new buffer manager having the specified 
@@ -39,7 +47,18 @@ public class BufferMgr implements IStatistics{
     * @param numbuffers the number of buffer slots to allocate
     */
    public BufferMgr(int numbuffers) {
-      bufferMgr = BufferManagerFactory.getInstance(BufferManagerFactory.BufferManagerType.LRU, numbuffers);
+      this(numbuffers, BufferManagerFactory.BufferManagerType.LRU);
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified 
+    * number of buffers, whose replacement and locking
+    * behavior is given by the specified type.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param type the kind of basic buffer manager to use
+    */
+   public BufferMgr(int numbuffers, BufferManagerFactory.BufferManagerType type) {
+      bufferMgr = BufferManagerFactory.getInstance(type, numbuffers);
    }
    
    /**
@@ -50,16 +69,13 @@ public class BufferMgr implements IStatistics{
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
+   public Buffer pin(Block blk) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
-         }
-         if (buff == null)
+         Buffer buff = bufferMgr.pin(blk, MAX_TIME);
+         if (buff == null) {
+            pinTimeouts.incrementAndGet();
             throw new BufferAbortException();
+         }
          return buff;
       }
       catch(InterruptedException e) {
@@ -76,16 +92,13 @@ public class BufferMgr implements IStatistics{
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
-         }
-         if (buff == null)
+         Buffer buff = bufferMgr.pinNew(filename, fmtr, MAX_TIME);
+         if (buff == null) {
+            pinTimeouts.incrementAndGet();
             throw new BufferAbortException();
+         }
          return buff;
       }
       catch(InterruptedException e) {
@@ -99,18 +112,60 @@ public class BufferMgr implements IStatistics{
     * then the threads on the wait list are notified.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
+   public void unpin(Buffer buff) {
       bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
    }
    
    /**
-    * Flushes the dirty buffers modified by the specified transaction.
+    * Flushes the dirty buffers modified by the specified transaction,
+    * and forces the database files onto the disk.
+    * This method is called by recovery before it writes a quiescent
+    * checkpoint, which is the point at which the flushed pages must
+    * be durable; committing transactions leave their pages to be
+    * written later, and the pages written since are forced by the
+    * next checkpoint (see {@link simpledb.tx.recovery.RecoveryMgr#checkpoint()}).
     * @param txnum the transaction's id number
     */
    public void flushAll(int txnum) {
       bufferMgr.flushAll(txnum);
+      SimpleDB.fileMgr().forceAll();
+   }
+   
+   /**
+    * Returns the dirty-page table of the pool: the blocks
+    * whose logged modifications have not yet been written,
+    * each with the LSN of the first of those modifications.
+    * A fuzzy checkpoint records this table, so that recovery
+    * knows where in the log the redo of the page must begin.
+    * @return the recovery LSN of each dirty block
+    */
+   public Map<Block,Long> dirtyPages() {
+      return bufferMgr.dirtyPages();
+   }
+   
+   /**
+    * Starts a background thread that writes dirty buffers
+    * to disk before they are chosen for replacement.
+    * Any cleaner started earlier is stopped first.
+    * @param targetRatio the fraction of the pool that the cleaner keeps clean
+    * @param interval the number of milliseconds the cleaner sleeps when it finds nothing to write
+    */
+   public synchronized void startPageCleaner(double targetRatio, long interval) {
+      stopPageCleaner();
+      cleaner = new PageCleaner(bufferMgr, targetRatio, interval);
+      bufferMgr.cleaner = cleaner;
+      cleaner.start();
+   }
+   
+   /**
+    * Stops the page cleaner, if one is running.
+    */
+   public synchronized void stopPageCleaner() {
+      if (cleaner != null) {
+         cleaner.shutdown();
+         cleaner = null;
+         bufferMgr.cleaner = null;
+      }
    }
    
    /**
@@ -121,12 +176,29 @@ public class BufferMgr implements IStatistics{
       return bufferMgr.available();
    }
    
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
-   }
-
+   /**
+    * Returns the statistics of each buffer in the pool.
+    * @return the statistics of the buffers, ordered by buffer id
+    */
   @Override
   public ArrayList<Stats> getStatistics() {
     return bufferMgr.getStatistics();
   }
+   
+   /**
+    * Returns a snapshot of the statistics of the pool:
+    * hits, misses, evictions, dirty flushes, and the
+    * time spent waiting for available buffers, and the
+    * number of pages written by the page cleaner.
+    * The counters are maintained without allocation
+    * when buffers are pinned and unpinned; only taking
+    * the snapshot allocates.
+    * @return the current statistics of the pool
+    */
+   public BufferPoolStats snapshot() {
+      PageCleaner c = cleaner;
+      return new BufferPoolStats(bufferMgr.size(), bufferMgr.available(),
+                                 bufferMgr.getStatistics(), bufferMgr.pinWaits(),
+                                 pinTimeouts.get(), c == null ? 0 : c.pagesWritten());
+   }
 }
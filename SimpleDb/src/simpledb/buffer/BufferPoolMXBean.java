@@ -0,0 +1,42 @@
+package simpledb.buffer;
+
+/**
+ * The management interface of the buffer pool, which is registered with the platform MBean server
+ * under the name {@code simpledb:type=BufferPool}. Each attribute is read from a fresh
+ * {@link BufferPoolStats} snapshot.
+ */
+public interface BufferPoolMXBean {
+  int getSize();
+
+  int getAvailable();
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRatio();
+
+  long getAppends();
+
+  long getEvictions();
+
+  long getDirtyEvictions();
+
+  long getDirtyFlushes();
+
+  long getCleanerWrites();
+
+  long getPinWaits();
+
+  long getPinWaitMillis();
+
+  long getMaxPinWaitMillis();
+
+  long getPinTimeouts();
+
+  /** Returns the pin wait counts per histogram bucket. */
+  long[] getPinWaitHistogram();
+
+  /** Returns the exclusive upper bound of each histogram bucket, in microseconds. */
+  long[] getPinWaitHistogramBoundsMicros();
+}
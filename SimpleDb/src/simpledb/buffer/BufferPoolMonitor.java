@@ -0,0 +1,96 @@
+package simpledb.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import simpledb.server.LatencyHistogram;
+
+/**
+ * Exposes the statistics of a buffer manager as a {@link BufferPoolMXBean}.
+ */
+public class BufferPoolMonitor implements BufferPoolMXBean {
+  private BufferMgr bufferMgr;
+
+  public BufferPoolMonitor(BufferMgr bufferMgr) {
+    this.bufferMgr = bufferMgr;
+  }
+
+  @Override
+  public int getSize() {
+    return bufferMgr.snapshot().size();
+  }
+
+  @Override
+  public int getAvailable() {
+    return bufferMgr.available();
+  }
+
+  @Override
+  public long getHits() {
+    return bufferMgr.snapshot().hits();
+  }
+
+  @Override
+  public long getMisses() {
+    return bufferMgr.snapshot().misses();
+  }
+
+  @Override
+  public double getHitRatio() {
+    return bufferMgr.snapshot().hitRatio();
+  }
+
+  @Override
+  public long getAppends() {
+    return bufferMgr.snapshot().appends();
+  }
+
+  @Override
+  public long getEvictions() {
+    return bufferMgr.snapshot().evictions();
+  }
+
+  @Override
+  public long getDirtyEvictions() {
+    return bufferMgr.snapshot().dirtyEvictions();
+  }
+
+  @Override
+  public long getDirtyFlushes() {
+    return bufferMgr.snapshot().dirtyFlushes();
+  }
+
+  @Override
+  public long getCleanerWrites() {
+    return bufferMgr.snapshot().cleanerWrites();
+  }
+
+  @Override
+  public long getPinWaits() {
+    return bufferMgr.snapshot().pinWaits();
+  }
+
+  @Override
+  public long getPinWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(bufferMgr.snapshot().pinWaitNanos());
+  }
+
+  @Override
+  public long getMaxPinWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(bufferMgr.snapshot().maxPinWaitNanos());
+  }
+
+  @Override
+  public long getPinTimeouts() {
+    return bufferMgr.snapshot().pinTimeouts();
+  }
+
+  @Override
+  public long[] getPinWaitHistogram() {
+    return bufferMgr.snapshot().pinWaitHistogram();
+  }
+
+  @Override
+  public long[] getPinWaitHistogramBoundsMicros() {
+    return LatencyHistogram.upperBoundsMicros();
+  }
+}
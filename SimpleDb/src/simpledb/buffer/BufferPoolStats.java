@@ -0,0 +1,147 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import simpledb.buffer.IStatistics.Stats;
+import simpledb.server.LatencyHistogram;
+
+/**
+ * A point-in-time snapshot of the statistics of a buffer pool. The pool-wide counters are the sums
+ * of the counters of the individual buffers, which are also available through {@link #frames()}.
+ *
+ * The counters are read one buffer at a time without stopping the pool, so a snapshot taken under
+ * load is only approximately consistent.
+ */
+public class BufferPoolStats {
+  private int size;
+  private int available;
+  private long fetches, reads, appends, writes, evictions, dirtyEvictions;
+  private long pinWaits, pinWaitNanos, maxPinWaitNanos, pinTimeouts;
+  private long cleanerWrites;
+  private long[] pinWaitHistogram;
+  private List<Stats> frames;
+
+  BufferPoolStats(int size, int available, ArrayList<Stats> frames, LatencyHistogram waits,
+      long pinTimeouts, long cleanerWrites) {
+    this.size = size;
+    this.available = available;
+    this.frames = Collections.unmodifiableList(frames);
+    for (Stats s : frames) {
+      fetches += s.getTotalFetches();
+      reads += s.getReads();
+      appends += s.getAppends();
+      writes += s.getWrites();
+      evictions += s.getEvictions();
+      dirtyEvictions += s.getDirtyEvictions();
+    }
+    this.pinWaitHistogram = waits.counts();
+    this.pinWaits = waits.count();
+    this.pinWaitNanos = waits.totalNanos();
+    this.maxPinWaitNanos = waits.maxNanos();
+    this.pinTimeouts = pinTimeouts;
+    this.cleanerWrites = cleanerWrites;
+  }
+
+  /** Returns the number of buffers in the pool. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the number of unpinned buffers. */
+  public int available() {
+    return available;
+  }
+
+  /** Returns the number of pins, including the pins of newly appended blocks. */
+  public long fetches() {
+    return fetches;
+  }
+
+  /** Returns the number of pins that found their block already in the pool. */
+  public long hits() {
+    return fetches - reads - appends;
+  }
+
+  /** Returns the number of pins that had to read their block from disk. */
+  public long misses() {
+    return reads;
+  }
+
+  /** Returns the fraction of pins of existing blocks that were hits, or 0 if there were none. */
+  public double hitRatio() {
+    long lookups = fetches - appends;
+    return lookups == 0 ? 0 : (double) hits() / lookups;
+  }
+
+  /** Returns the number of new blocks appended to files through the pool. */
+  public long appends() {
+    return appends;
+  }
+
+  /** Returns the number of times a buffer's block was replaced by another block. */
+  public long evictions() {
+    return evictions;
+  }
+
+  /**
+   * Returns the number of evictions that first had to write a modified block to disk. These are
+   * the writes that the page cleaner did not get to in time.
+   */
+  public long dirtyEvictions() {
+    return dirtyEvictions;
+  }
+
+  /** Returns the number of times a modified buffer was written to disk, for any reason. */
+  public long dirtyFlushes() {
+    return writes;
+  }
+
+  /** Returns the number of modified buffers written to disk by the page cleaner. */
+  public long cleanerWrites() {
+    return cleanerWrites;
+  }
+
+  /** Returns the number of pins that had to wait for a buffer to become available. */
+  public long pinWaits() {
+    return pinWaits;
+  }
+
+  /** Returns the total time that pins spent waiting for an available buffer, in nanoseconds. */
+  public long pinWaitNanos() {
+    return pinWaitNanos;
+  }
+
+  /** Returns the longest time that a pin spent waiting for an available buffer, in nanoseconds. */
+  public long maxPinWaitNanos() {
+    return maxPinWaitNanos;
+  }
+
+  /** Returns the number of pins that gave up because no buffer became available in time. */
+  public long pinTimeouts() {
+    return pinTimeouts;
+  }
+
+  /**
+   * Returns the number of pin waits in each bucket of a {@link LatencyHistogram}; the bucket bounds
+   * are given by {@link LatencyHistogram#upperBoundsMicros()}.
+   */
+  public long[] pinWaitHistogram() {
+    return pinWaitHistogram.clone();
+  }
+
+  /** Returns the statistics of the individual buffers, ordered by buffer id. */
+  public List<Stats> frames() {
+    return frames;
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPoolStats [size=" + size + ", available=" + available + ", hits=" + hits()
+        + ", misses=" + misses() + ", appends=" + appends + ", evictions=" + evictions
+        + ", dirtyEvictions=" + dirtyEvictions + ", dirtyFlushes=" + writes + ", cleanerWrites="
+        + cleanerWrites + ", pinWaits=" + pinWaits + ", pinWaitNanos=" + pinWaitNanos
+        + ", pinTimeouts=" + pinTimeouts + "]";
+  }
+}
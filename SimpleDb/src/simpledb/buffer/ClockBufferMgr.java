@@ -0,0 +1,113 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import simpledb.file.Block;
+
+/**
+ * A buffer manager that uses the CLOCK (second-chance) replacement policy.
+ *
+ * Each buffer has a reference bit, which is set whenever the buffer is pinned. To choose a victim,
+ * a hand sweeps around the pool: a pinned buffer is skipped, a buffer whose reference bit is set
+ * has the bit cleared and is skipped, and the first unpinned buffer with a clear bit is chosen.
+ * Because every buffer the hand passes loses its bit, the hand makes at most two revolutions, and
+ * the amortized cost of choosing a victim is constant. If no buffer is unpinned, the manager
+ * returns immediately instead of sweeping.
+ *
+ * The reference bits are kept in an array indexed by buffer id, so neither pinning nor victim
+ * selection allocates any objects.
+ */
+public class ClockBufferMgr extends BasicBufferMgr implements IStatistics {
+  private HashMap<Block, Buffer> bufferPoolMap = new HashMap<Block, Buffer>();
+  private boolean[] referenced;
+  private int hand = 0;
+
+  ClockBufferMgr(int numbuffs) {
+    super(numbuffs);
+    referenced = new boolean[numbuffs];
+  }
+
+  @Override
+  synchronized Buffer pin(Block blk) {
+    Buffer buff = findExistingBuffer(blk);
+    if (buff == null) {
+      buff = chooseUnpinnedBuffer();
+      if (buff == null) {
+        return null;
+      }
+      if (buff.block() != null) {
+        bufferPoolMap.remove(buff.block());
+      }
+      buff.assignToBlock(blk);
+      bufferPoolMap.put(blk, buff);
+    }
+
+    if (!buff.isPinned()) {
+      numAvailable--;
+    }
+    buff.pin();
+    referenced[buff.id()] = true;
+    return buff;
+  }
+
+  @Override
+  synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+    Buffer buff = chooseUnpinnedBuffer();
+    if (buff == null) {
+      return null;
+    }
+    if (buff.block() != null) {
+      bufferPoolMap.remove(buff.block());
+    }
+    buff.assignToNew(filename, fmtr);
+    bufferPoolMap.put(buff.block(), buff);
+    numAvailable--;
+    buff.pin();
+    referenced[buff.id()] = true;
+    return buff;
+  }
+
+  /**
+   * Examines the unpinned buffers in the order in which the hand will reach them. Reference bits
+   * are ignored, so a referenced buffer may be cleaned a little earlier than necessary.
+   */
+  @Override
+  synchronized List<Buffer> dirtyVictims(int count) {
+    List<Buffer> order = new ArrayList<Buffer>(bufferpool.length);
+    for (int i = 0; i < bufferpool.length; i++)
+      order.add(bufferpool[(hand + i) % bufferpool.length]);
+    List<Buffer> dirty = new ArrayList<Buffer>();
+    collectDirty(order, count, dirty);
+    return dirty;
+  }
+
+  @Override
+  protected Buffer findExistingBuffer(Block blk) {
+    return bufferPoolMap.get(blk);
+  }
+
+  /**
+   * Advances the clock hand to the next unpinned buffer whose reference bit is clear, clearing
+   * the bits of the unpinned buffers it passes.
+   */
+  @Override
+  protected Buffer chooseUnpinnedBuffer() {
+    if (numAvailable == 0) {
+      return null;
+    }
+    while (true) {
+      Buffer buff = bufferpool[hand];
+      hand = (hand + 1) % bufferpool.length;
+      if (buff.isPinned()) {
+        continue;
+      }
+      if (referenced[buff.id()]) {
+        referenced[buff.id()] = false;
+        continue;
+      }
+      return buff;
+    }
+  }
+}
@@ -7,22 +7,78 @@ import java.util.ArrayList;
 public interface IStatistics {
   public ArrayList<Stats> getStatistics();
 
+  /**
+   * The counters of a single buffer, as of the moment they were read.
+   */
   class Stats {
-    public Stats(int writes, int totalFeches, int bufferId) {
+    public Stats(long writes, long totalFeches, int bufferId) {
+      this(writes, totalFeches, 0, 0, 0, 0, bufferId);
+    }
+
+    public Stats(long writes, long totalFeches, long reads, long appends, long evictions,
+        long dirtyEvictions, int bufferId) {
       super();
       this.writes = writes;
       this.totalFeches = totalFeches;
+      this.reads = reads;
+      this.appends = appends;
+      this.evictions = evictions;
+      this.dirtyEvictions = dirtyEvictions;
       this.bufferId = bufferId;
     }
 
-    int writes;
-    int totalFeches;
+    long writes;
+    long totalFeches;
+    long reads;
+    long appends;
+    long evictions;
+    long dirtyEvictions;
     int bufferId;
 
+    /** Returns the number of times the buffer was written to disk. */
+    public long getWrites() {
+      return writes;
+    }
+
+    /** Returns the number of times the buffer was pinned. */
+    public long getTotalFetches() {
+      return totalFeches;
+    }
+
+    /** Returns the number of blocks read from disk into the buffer, i.e. its misses. */
+    public long getReads() {
+      return reads;
+    }
+
+    /** Returns the number of new blocks appended to a file through the buffer. */
+    public long getAppends() {
+      return appends;
+    }
+
+    /** Returns the number of pins that found their block already in the buffer. */
+    public long getHits() {
+      return totalFeches - reads - appends;
+    }
+
+    /** Returns the number of times the buffer's block was replaced by another block. */
+    public long getEvictions() {
+      return evictions;
+    }
+
+    /** Returns the number of evictions that first had to write a modified block to disk. */
+    public long getDirtyEvictions() {
+      return dirtyEvictions;
+    }
+
+    public int getBufferId() {
+      return bufferId;
+    }
+
     @Override
     public String toString() {
-      return "Stats [writes=" + writes + ", totalFeches=" + totalFeches + ", bufferId=" + bufferId
-          + "]";
+      return "Stats [writes=" + writes + ", totalFeches=" + totalFeches + ", reads=" + reads
+          + ", appends=" + appends + ", evictions=" + evictions + ", dirtyEvictions="
+          + dirtyEvictions + ", bufferId=" + bufferId + "]";
     }
 
   }
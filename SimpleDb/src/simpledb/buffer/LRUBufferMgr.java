@@ -1,14 +1,34 @@
 package simpledb.buffer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import simpledb.file.Block;
 
 public class LRUBufferMgr extends BasicBufferMgr implements IStatistics {
+  /*
+   * A map which contains a mapping between the BLOCK and the BUFFER assigned to it. BLOCK ->
+   * BUFFER.
+   * 
+   * @see MRMBufferMgr
+   */
+  private HashMap<Block, Buffer> bufferPoolMap = new HashMap<Block, Buffer>();
+
+  /*
+   * The unpinned buffers, ordered by the LSN of their most recent modification. Buffers with the
+   * same LSN are ordered by id, so that every unpinned buffer has its own key. The key is the LSN
+   * times the size of the pool plus the id, which stays within a long for any log that a pool of a
+   * million buffers would see (about 9 TB).
+   */
+  private TreeMap<Long, Buffer> lsnMap = new TreeMap<>();
 
   LRUBufferMgr(int numbuffs) {
     super(numbuffs);
+    for (Buffer buff : bufferpool)
+      lsnMap.put(key(buff.logSequenceNumber(), buff), buff);
   }
 
   @Override
@@ -31,6 +51,7 @@ public class LRUBufferMgr extends BasicBufferMgr implements IStatistics {
     }
 
     if (!buff.isPinned()) {
+      lsnMap.remove(key(buff.logSequenceNumber(), buff));
       numAvailable--;
     }
     buff.pin();
@@ -41,6 +62,23 @@ public class LRUBufferMgr extends BasicBufferMgr implements IStatistics {
   @Override
   synchronized void unpin(Buffer buff) {
     super.unpin(buff);
+    if (!buff.isPinned()) {
+      lsnMap.put(key(buff.logSequenceNumber(), buff), buff);
+    }
+  }
+
+  @Override
+  synchronized void lsnChanged(Buffer buff, long oldlsn, long newlsn) {
+    // only unpinned buffers are in the map
+    if (lsnMap.remove(key(oldlsn, buff)) != null)
+      lsnMap.put(key(newlsn, buff), buff);
+  }
+
+  @Override
+  synchronized List<Buffer> dirtyVictims(int count) {
+    List<Buffer> dirty = new ArrayList<Buffer>();
+    collectDirty(lsnMap.values(), count, dirty);
+    return dirty;
   }
 
   @Override
@@ -51,19 +89,11 @@ public class LRUBufferMgr extends BasicBufferMgr implements IStatistics {
   @Override
   protected Buffer chooseUnpinnedBuffer() {
 
-    TreeMap<Integer, Buffer> map = getLsnMap();
-    if (map.size() == 0) {
+    Map.Entry<Long, Buffer> entry = getLsnMap().pollFirstEntry();
+    if (entry == null) {
       return null;
     }
-    Buffer retBuf = null;
-    int retLsn = Integer.MIN_VALUE;
-    for (Map.Entry<Integer, Buffer> entry : map.entrySet()) {
-      retBuf = entry.getValue();
-      retLsn = entry.getKey();
-      break;
-    }
-    map.remove(retLsn);
-    return retBuf;
+    return entry.getValue();
   }
 
   @Override
@@ -77,8 +107,21 @@ public class LRUBufferMgr extends BasicBufferMgr implements IStatistics {
     }
     
     buff.assignToNew(filename, fmtr);
+    getBufferPoolMap().put(buff.block(), buff);
     numAvailable--;
     buff.pin();
     return buff;
   }
+
+  public HashMap<Block, Buffer> getBufferPoolMap() {
+    return bufferPoolMap;
+  }
+
+  public TreeMap<Long, Buffer> getLsnMap() {
+    return lsnMap;
+  }
+
+  private long key(long lsn, Buffer buff) {
+    return lsn * bufferpool.length + buff.id();
+  }
 }
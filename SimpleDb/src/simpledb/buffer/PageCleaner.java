@@ -0,0 +1,102 @@
+package simpledb.buffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A background thread that writes dirty buffers to disk before the buffer manager chooses them as
+ * victims, so that a thread pinning a new block rarely has to write the old one first.
+ *
+ * In each pass, the cleaner asks the buffer manager for the dirty buffers among the next victims it
+ * would choose, enough of them to make up the target fraction of the pool, and writes them. A pass
+ * that wrote something is followed immediately by another, so that the cleaner keeps up with a
+ * burst of modifications; after a pass that found nothing to write, the cleaner sleeps for the
+ * configured interval. A pinning thread that still has to write a dirty victim wakes the cleaner
+ * up, because more dirty victims are likely to follow. Only the cleaner's thread does the writing,
+ * without holding the buffer manager's lock. Each write first flushes the log up to the buffer's
+ * LSN, as every flush of a buffer does.
+ *
+ * Writing a dirty buffer early is always safe: the recovery manager undoes uncommitted changes
+ * using log records that were flushed before the page.
+ */
+class PageCleaner extends Thread {
+  private BasicBufferMgr bufferMgr;
+  private double targetRatio;
+  private long interval;
+  private volatile boolean stopped = false;
+  private AtomicLong pagesWritten = new AtomicLong();
+  private AtomicLong passes = new AtomicLong();
+
+  /**
+   * Creates a page cleaner for the specified buffer manager.
+   *
+   * @param bufferMgr the buffer manager whose buffers are cleaned
+   * @param targetRatio the fraction of the pool that should be clean and ready for replacement
+   * @param interval the number of milliseconds to sleep after a pass that wrote nothing
+   */
+  PageCleaner(BasicBufferMgr bufferMgr, double targetRatio, long interval) {
+    super("simpledb-page-cleaner");
+    this.bufferMgr = bufferMgr;
+    this.targetRatio = targetRatio;
+    this.interval = interval;
+    setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    while (!stopped) {
+      if (clean() == 0)
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(interval));
+    }
+  }
+
+  /**
+   * Writes the dirty buffers among the next victims of the buffer manager.
+   *
+   * @return the number of buffers written
+   */
+  int clean() {
+    int count = (int) Math.ceil(bufferMgr.size() * targetRatio);
+    int written = 0;
+    for (Buffer buff : bufferMgr.dirtyVictims(count))
+      if (buff.clean())
+        written++;
+    pagesWritten.addAndGet(written);
+    passes.incrementAndGet();
+    return written;
+  }
+
+  /**
+   * Wakes the cleaner up if it is sleeping.
+   */
+  void wakeUp() {
+    LockSupport.unpark(this);
+  }
+
+  /**
+   * Stops the cleaner after its current pass.
+   */
+  void shutdown() {
+    stopped = true;
+    wakeUp();
+  }
+
+  /**
+   * Returns the number of buffers written by the cleaner.
+   *
+   * @return the number of buffers written
+   */
+  long pagesWritten() {
+    return pagesWritten.get();
+  }
+
+  /**
+   * Returns the number of cleaning passes made so far.
+   *
+   * @return the number of passes
+   */
+  long passes() {
+    return passes.get();
+  }
+}
@@ -0,0 +1,342 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+
+/**
+ * A buffer manager whose block lookup table and replacement state are split into independent
+ * partitions, each protected by its own lock. A block always lives in the partition selected by
+ * its hash code, so transactions that pin unrelated blocks usually do not contend with each other.
+ *
+ * Each partition keeps its unpinned buffers in least-recently-unpinned order and replaces the
+ * oldest one. When a partition has no unpinned buffer of its own, it steals one from another
+ * partition; the stolen buffer is flushed and unmapped under the lock of the partition it came
+ * from, and then belongs to the stealing partition.
+ *
+ * A thread that finds no unpinned buffer anywhere waits on the condition of its own partition.
+ * Whenever a buffer becomes unpinned, a single waiting thread is signalled, preferably one waiting
+ * on the partition where the buffer was released.
+ *
+ * The number of partitions grows with the size of the pool, so that each partition starts with at
+ * least {@link #MIN_BUFFERS_PER_PARTITION} buffers.
+ */
+class PartitionedBufferMgr extends BasicBufferMgr {
+  static final int MIN_BUFFERS_PER_PARTITION = 4;
+  static final int MAX_PARTITIONS = 64;
+
+  private Partition[] partitions;
+  private AtomicInteger available;
+  private AtomicInteger waiting = new AtomicInteger();
+  private AtomicLong releases = new AtomicLong();
+
+  /**
+   * Creates a partitioned buffer manager having the specified number of buffer slots. The buffers
+   * are dealt out round-robin to the partitions.
+   *
+   * @param numbuffs the number of buffer slots to allocate
+   */
+  PartitionedBufferMgr(int numbuffs) {
+    super(numbuffs);
+    int numparts = numbuffs / MIN_BUFFERS_PER_PARTITION;
+    numparts = Math.max(1, Math.min(numparts, MAX_PARTITIONS));
+    partitions = new Partition[numparts];
+    for (int i = 0; i < numparts; i++)
+      partitions[i] = new Partition();
+    for (int i = 0; i < numbuffs; i++)
+      partitions[i % numparts].unpinned.add(bufferpool[i]);
+    available = new AtomicInteger(numbuffs);
+  }
+
+  @Override
+  void flushAll(int txnum) {
+    List<Buffer> modified = new ArrayList<Buffer>();
+    for (Partition p : partitions) {
+      p.lock.lock();
+      try {
+        for (Buffer buff : p.blocks.values())
+          if (buff.isModifiedBy(txnum))
+            modified.add(buff);
+      } finally {
+        p.lock.unlock();
+      }
+    }
+    Buffer.flush(modified, txnum);
+  }
+
+  /**
+   * Examines the least recently unpinned buffers of each partition, in proportion to the
+   * partition's share of the pool. Each partition is locked only while it is examined.
+   */
+  @Override
+  List<Buffer> dirtyVictims(int count) {
+    List<Buffer> dirty = new ArrayList<Buffer>();
+    int share = (count + partitions.length - 1) / partitions.length;
+    for (Partition p : partitions) {
+      p.lock.lock();
+      try {
+        collectDirty(p.unpinned, share, dirty);
+      } finally {
+        p.lock.unlock();
+      }
+    }
+    return dirty;
+  }
+
+  @Override
+  Buffer pin(Block blk) {
+    try {
+      return pin(blk, 0);
+    } catch (InterruptedException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Pins a buffer to the specified block, waiting on the condition of the block's partition until
+   * a buffer becomes available. Only the lock of that partition is held while the block is looked
+   * up and, if necessary, read in.
+   */
+  @Override
+  Buffer pin(Block blk, long maxtime) throws InterruptedException {
+    Partition p = partitionFor(blk);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxtime);
+    p.lock.lock();
+    try {
+      Buffer buff = p.blocks.get(blk);
+      if (buff == null) {
+        buff = chooseBuffer(p, deadline);
+        if (buff == null)
+          return null;
+        // the block may have been pinned by someone else while the partition was unlocked
+        Buffer existing = p.blocks.get(blk);
+        if (existing != null) {
+          p.unpinned.add(buff);
+          buff = existing;
+        } else {
+          buff.assignToBlock(blk);
+          p.blocks.put(blk, buff);
+        }
+      }
+      pinBuffer(p, buff);
+      return buff;
+    } finally {
+      p.lock.unlock();
+    }
+  }
+
+  @Override
+  Buffer pinNew(String filename, PageFormatter fmtr) {
+    try {
+      return pinNew(filename, fmtr, 0);
+    } catch (InterruptedException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Allocates a new block in the specified file and pins a buffer to it. The partition is chosen
+   * from the block that the append is expected to create. Appends to a file are serialized by the
+   * transaction's lock on the end of the file, so the guess is almost always right; if another
+   * appender got there first, the new block is already on disk, and it is simply pinned through its
+   * own partition.
+   */
+  @Override
+  Buffer pinNew(String filename, PageFormatter fmtr, long maxtime) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    Block expected = new Block(filename, SimpleDB.fileMgr().size(filename));
+    Partition p = partitionFor(expected);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxtime);
+    Block blk;
+    p.lock.lock();
+    try {
+      Buffer buff = chooseBuffer(p, deadline);
+      if (buff == null)
+        return null;
+      buff.assignToNew(filename, fmtr);
+      blk = buff.block();
+      if (partitionFor(blk) == p) {
+        p.blocks.put(blk, buff);
+        pinBuffer(p, buff);
+        return buff;
+      }
+      p.unpinned.add(buff);
+    } finally {
+      p.lock.unlock();
+    }
+    signalWaiter(p);
+    long remaining = Math.max(0, maxtime - (System.currentTimeMillis() - start));
+    return pin(blk, remaining);
+  }
+
+  @Override
+  void unpin(Buffer buff) {
+    Partition p = partitionFor(buff.block());
+    p.lock.lock();
+    try {
+      buff.unpin();
+      if (buff.isPinned())
+        return;
+      p.unpinned.add(buff);
+      available.incrementAndGet();
+    } finally {
+      p.lock.unlock();
+    }
+    signalWaiter(p);
+  }
+
+  @Override
+  int available() {
+    return available.get();
+  }
+
+  /**
+   * Returns an unpinned buffer for partition p, which must be locked by the caller. The buffer is
+   * taken from p if possible, and otherwise stolen from another partition. If no buffer is
+   * available, the thread waits on p's condition until the deadline, and the time from its first
+   * wait until it returns is recorded. The returned buffer is unmapped and belongs to no
+   * partition's list of unpinned buffers.
+   */
+  private Buffer chooseBuffer(Partition p, long deadline) throws InterruptedException {
+    long start = 0;
+    try {
+      while (true) {
+        Buffer buff = takeUnpinned(p);
+        if (buff != null)
+          return buff;
+        waiting.incrementAndGet();
+        p.waiting++;
+        try {
+          long seen = releases.get();
+          p.lock.unlock();
+          try {
+            buff = steal(p);
+          } finally {
+            p.lock.lock();
+          }
+          if (buff != null)
+            return buff;
+          if (releases.get() != seen)
+            continue; // a buffer was unpinned while we looked; try again
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0)
+            return null;
+          if (start == 0)
+            start = System.nanoTime();
+          p.available.awaitNanos(remaining);
+        } finally {
+          p.waiting--;
+          waiting.decrementAndGet();
+        }
+      }
+    } finally {
+      if (start != 0)
+        pinWaits.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Removes the least recently unpinned buffer from the locked partition p and unmaps its block.
+   * The buffer is flushed before its old block is unmapped, so that a later pin of that block reads
+   * the current contents from disk, even if the buffer goes back to the unpinned list without being
+   * reassigned (when the caller finds that its block was pinned meanwhile).
+   */
+  private Buffer takeUnpinned(Partition p) {
+    Iterator<Buffer> iter = p.unpinned.iterator();
+    if (!iter.hasNext())
+      return null;
+    Buffer buff = iter.next();
+    iter.remove();
+    buff.flushForEviction();
+    Block old = buff.block();
+    if (old != null && p.blocks.get(old) == buff)
+      p.blocks.remove(old);
+    return buff;
+  }
+
+  /**
+   * Takes an unpinned buffer from some partition other than p. The caller must not hold any
+   * partition lock.
+   */
+  private Buffer steal(Partition p) {
+    for (Partition q : partitions) {
+      if (q == p)
+        continue;
+      q.lock.lock();
+      try {
+        Buffer buff = takeUnpinned(q);
+        if (buff != null)
+          return buff;
+      } finally {
+        q.lock.unlock();
+      }
+    }
+    return null;
+  }
+
+  private void pinBuffer(Partition p, Buffer buff) {
+    if (!buff.isPinned()) {
+      p.unpinned.remove(buff);
+      available.decrementAndGet();
+    }
+    buff.pin();
+  }
+
+  /**
+   * Announces that a buffer has become available in partition p, and wakes up one waiting thread.
+   * A thread waiting on p is preferred; otherwise the first partition having a waiting thread is
+   * signalled, because that thread can steal the buffer. The caller must not hold any partition
+   * lock.
+   */
+  private void signalWaiter(Partition p) {
+    releases.incrementAndGet();
+    if (waiting.get() == 0)
+      return;
+    if (signal(p))
+      return;
+    for (Partition q : partitions)
+      if (q != p && signal(q))
+        return;
+  }
+
+  private boolean signal(Partition p) {
+    if (p.waiting == 0)
+      return false;
+    p.lock.lock();
+    try {
+      if (p.waiting == 0)
+        return false;
+      p.available.signal();
+      return true;
+    } finally {
+      p.lock.unlock();
+    }
+  }
+
+  private Partition partitionFor(Block blk) {
+    int h = blk.hashCode() & Integer.MAX_VALUE;
+    return partitions[h % partitions.length];
+  }
+
+  /**
+   * The state of one partition. All fields are guarded by the partition's lock; the number of
+   * waiting threads is volatile so that releasing threads can skip partitions nobody waits on.
+   */
+  private static class Partition {
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition available = lock.newCondition();
+    final HashMap<Block, Buffer> blocks = new HashMap<Block, Buffer>();
+    final LinkedHashSet<Buffer> unpinned = new LinkedHashSet<Buffer>();
+    volatile int waiting = 0;
+  }
+}
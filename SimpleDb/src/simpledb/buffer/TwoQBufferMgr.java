@@ -0,0 +1,164 @@
+package simpledb.buffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import simpledb.file.Block;
+
+/**
+ * A buffer manager that uses the 2Q replacement policy, which keeps blocks that are read once,
+ * such as the blocks of a sequential table scan, from pushing frequently used blocks out of the
+ * pool.
+ *
+ * Resident buffers live in one of two queues. A block that is read in for the first time goes to
+ * the FIFO queue A1in; repeated pins while it is in A1in do not move it. When a block is evicted
+ * from A1in, its identity (not its buffer) is remembered in the history queue A1out. A block that
+ * is read in again while it is still remembered in A1out has been re-referenced, and goes to the
+ * LRU queue Am, which holds the pool's hot set.
+ *
+ * A victim is taken from the head of A1in while A1in holds more than a quarter of the pool, and
+ * from the least recently used end of Am otherwise. A1out remembers at most half as many blocks
+ * as there are buffers.
+ */
+public class TwoQBufferMgr extends BasicBufferMgr implements IStatistics {
+  private HashMap<Block, Buffer> bufferPoolMap = new HashMap<Block, Buffer>();
+  private ArrayDeque<Buffer> free = new ArrayDeque<Buffer>();
+  private LinkedHashSet<Buffer> a1in = new LinkedHashSet<Buffer>();
+  private LinkedHashSet<Buffer> am = new LinkedHashSet<Buffer>();
+  private LinkedHashSet<Block> a1out = new LinkedHashSet<Block>();
+  private int maxA1in;
+  private int maxA1out;
+
+  TwoQBufferMgr(int numbuffs) {
+    super(numbuffs);
+    for (Buffer buff : bufferpool)
+      free.add(buff);
+    maxA1in = Math.max(1, numbuffs / 4);
+    maxA1out = Math.max(1, numbuffs / 2);
+  }
+
+  @Override
+  synchronized Buffer pin(Block blk) {
+    Buffer buff = findExistingBuffer(blk);
+    if (buff != null) {
+      if (am.remove(buff)) {
+        am.add(buff);
+      }
+    } else {
+      buff = chooseUnpinnedBuffer();
+      if (buff == null) {
+        return null;
+      }
+      buff.assignToBlock(blk);
+      bufferPoolMap.put(blk, buff);
+      if (a1out.remove(blk)) {
+        am.add(buff);
+      } else {
+        a1in.add(buff);
+      }
+    }
+
+    if (!buff.isPinned()) {
+      numAvailable--;
+    }
+    buff.pin();
+    return buff;
+  }
+
+  @Override
+  synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+    Buffer buff = chooseUnpinnedBuffer();
+    if (buff == null) {
+      return null;
+    }
+    buff.assignToNew(filename, fmtr);
+    bufferPoolMap.put(buff.block(), buff);
+    a1in.add(buff);
+    numAvailable--;
+    buff.pin();
+    return buff;
+  }
+
+  /**
+   * Examines the buffers of A1in first if A1in is over its target size, and the buffers of Am
+   * first otherwise. Unused buffers are clean, and are counted first.
+   */
+  @Override
+  synchronized List<Buffer> dirtyVictims(int count) {
+    List<Buffer> dirty = new ArrayList<Buffer>();
+    count -= free.size();
+    if (a1in.size() > maxA1in) {
+      count -= collectDirty(a1in, count, dirty);
+      collectDirty(am, count, dirty);
+    } else {
+      count -= collectDirty(am, count, dirty);
+      collectDirty(a1in, count, dirty);
+    }
+    return dirty;
+  }
+
+  @Override
+  protected Buffer findExistingBuffer(Block blk) {
+    return bufferPoolMap.get(blk);
+  }
+
+  /**
+   * Chooses an unpinned buffer and removes it from the queues and the block map. Buffers that
+   * have never been used are chosen first. Otherwise the victim comes from A1in if A1in is over
+   * its target size, and from Am if not; if every buffer in the preferred queue is pinned, the
+   * other queue is tried.
+   */
+  @Override
+  protected Buffer chooseUnpinnedBuffer() {
+    if (numAvailable == 0) {
+      return null;
+    }
+    if (!free.isEmpty()) {
+      return free.poll();
+    }
+    Buffer buff;
+    if (a1in.size() > maxA1in) {
+      buff = evict(a1in, true);
+      if (buff == null) {
+        buff = evict(am, false);
+      }
+    } else {
+      buff = evict(am, false);
+      if (buff == null) {
+        buff = evict(a1in, true);
+      }
+    }
+    return buff;
+  }
+
+  /**
+   * Removes the first unpinned buffer of the specified queue from the queue and the block map.
+   * If the buffer came from A1in, its block is remembered in A1out.
+   */
+  private Buffer evict(LinkedHashSet<Buffer> queue, boolean remember) {
+    Iterator<Buffer> iter = queue.iterator();
+    while (iter.hasNext()) {
+      Buffer buff = iter.next();
+      if (buff.isPinned()) {
+        continue;
+      }
+      iter.remove();
+      Block blk = buff.block();
+      bufferPoolMap.remove(blk);
+      if (remember) {
+        a1out.add(blk);
+        if (a1out.size() > maxA1out) {
+          Iterator<Block> oldest = a1out.iterator();
+          oldest.next();
+          oldest.remove();
+        }
+      }
+      return buff;
+    }
+    return null;
+  }
+}
@@ -1,10 +1,12 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The SimpleDB file manager.
@@ -19,12 +21,39 @@ import java.util.*;
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * Methods {@link #force(String) force} and {@link #forceAll() forceAll} are called
+ * by the log manager, the buffer manager and the recovery manager to make their writes durable.
+ * Methods {@link #exists(String) exists}, {@link #delete(String) delete}
+ * and {@link #archive(String, String) archive} are called by the log manager
+ * to manage the segment files of the log.
+ * 
+ * Each file has its own channel, and blocks are read and written at explicit positions,
+ * so that threads accessing different blocks do not wait for each other.
+ * Files are not opened in synchronous mode; a write reaches the disk only when
+ * the file is forced. The log is forced when it is flushed; the data files
+ * are forced at each checkpoint and at the end of recovery, but not at commit,
+ * since recovery redoes the updates of committed transactions from the log.
+ * Consecutive blocks of a file can also be read or written with a single
+ * scattering or gathering transfer (see {@link Page#read(Block, Page[])}).
+ * 
+ * The block size of a database is chosen when the database is created,
+ * and is recorded in the header file {@value #HEADER_FILE} of the database directory.
+ * A database directory without a header file was created before the block size
+ * was configurable, and has blocks of {@link Page#LEGACY_BLOCK_SIZE} bytes.
  * @author Edward Sciore
  */
 public class FileMgr {
+   /**
+    * The name of the file that records the block size of the database.
+    */
+   public static final String HEADER_FILE = "simpledb.hdr";
+   private static final int HEADER_MAGIC = 0x53444248; // "SDBH"
+   private static final int HEADER_VERSION = 1;
+   
    private File dbDirectory;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private int blocksize;
+   private Map<String,OpenFile> openFiles = new ConcurrentHashMap<String,OpenFile>();
 
    /**
     * Creates a file manager for the specified database.
@@ -33,9 +62,24 @@ public class FileMgr {
     * If the folder does not exist, then a folder containing
     * an empty database is created automatically.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+    * A new database has blocks of {@link Page#DEFAULT_BLOCK_SIZE} bytes.
     * @param dbname the name of the directory that holds the database
     */
    public FileMgr(String dbname) {
+      this(dbname, Page.DEFAULT_BLOCK_SIZE);
+   }
+   
+   /**
+    * Creates a file manager for the specified database,
+    * which is created with the specified block size if it does not exist.
+    * An existing database keeps the block size recorded in its header file;
+    * the header is validated when the database is opened.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size of the database, if it is new
+    */
+   public FileMgr(String dbname, int blocksize) {
+      if (!Page.isValidBlockSize(blocksize))
+         throw new RuntimeException("invalid block size " + blocksize);
       String homedir = System.getProperty("user.home");
       dbDirectory = new File(homedir, dbname);
       isNew = !dbDirectory.exists();
@@ -48,6 +92,14 @@ public class FileMgr {
       for (String filename : dbDirectory.list())
          if (filename.startsWith("temp"))
          new File(dbDirectory, filename).delete();
+      
+      File header = new File(dbDirectory, HEADER_FILE);
+      if (isNew)
+         writeHeader(header, blocksize);
+      else if (header.exists())
+         this.blocksize = readHeader(header);
+      else
+         writeHeader(header, Page.LEGACY_BLOCK_SIZE);
    }
 
    /**
@@ -55,11 +107,13 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   void read(Block blk, ByteBuffer bb) {
       try {
          bb.clear();
-         FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         FileChannel fc = getFile(blk.fileName()).channel;
+         long pos = (long) blk.number() * blocksize;
+         while (bb.hasRemaining() && fc.read(bb, pos + bb.position()) >= 0)
+            ;
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
@@ -71,29 +125,91 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   void write(Block blk, ByteBuffer bb) {
       try {
          bb.rewind();
-         FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         OpenFile f = getFile(blk.fileName());
+         long pos = (long) blk.number() * blocksize;
+         if (pos >= f.channel.size())
+            f.extended = true;
+         while (bb.hasRemaining())
+            f.channel.write(bb, pos + bb.position());
+         f.modified = true;
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
       }
    }
 
+   /**
+    * Reads consecutive disk blocks into the specified bytebuffers,
+    * one block per bytebuffer, with a single scattering read.
+    * @param first a reference to the first disk block
+    * @param bbs the bytebuffers, each of the block size
+    */
+   void read(Block first, ByteBuffer[] bbs) {
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.clear();
+         OpenFile f = getFile(first.fileName());
+         synchronized (f) {
+            f.channel.position((long) first.number() * blocksize);
+            while (bbs[bbs.length-1].hasRemaining() && f.channel.read(bbs) >= 0)
+               ;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + bbs.length + " blocks from " + first);
+      }
+   }
+
+   /**
+    * Writes the specified bytebuffers into consecutive disk blocks,
+    * one block per bytebuffer, with a single gathering write.
+    * @param first a reference to the first disk block
+    * @param bbs the bytebuffers, each of the block size
+    */
+   void write(Block first, ByteBuffer[] bbs) {
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.rewind();
+         OpenFile f = getFile(first.fileName());
+         synchronized (f) {
+            long pos = (long) first.number() * blocksize;
+            if (pos + (long) bbs.length * blocksize > f.channel.size())
+               f.extended = true;
+            f.channel.position(pos);
+            while (bbs[bbs.length-1].hasRemaining())
+               f.channel.write(bbs);
+            f.modified = true;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + bbs.length + " blocks to " + first);
+      }
+   }
+
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * Appends to the same file are serialized with each other,
+    * so that each one gets its own block.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      try {
+         OpenFile f = getFile(filename);
+         synchronized (f) {
+            Block blk = new Block(filename, (int)(f.channel.size() / blocksize));
+            write(blk, bb);
+            return blk;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot append to " + filename);
+      }
    }
 
    /**
@@ -101,16 +217,147 @@ public class FileMgr {
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
-         FileChannel fc = getFile(filename);
-         return (int)(fc.size() / BLOCK_SIZE);
+         FileChannel fc = getFile(filename).channel;
+         return (int)(fc.size() / blocksize);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Shortens the specified file to the specified number of blocks,
+    * discarding the blocks after them, and forces the change onto the disk.
+    * The log manager calls this method to discard the corrupt tail
+    * of the log at startup.
+    * @param filename the name of the file
+    * @param numblocks the number of blocks to keep
+    */
+   public void truncate(String filename, int numblocks) {
+      try {
+         OpenFile f = getFile(filename);
+         synchronized (f) {
+            f.channel.truncate((long) numblocks * blocksize);
+            f.channel.force(true);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot truncate " + filename);
+      }
+   }
+
+   /**
+    * Returns true if the specified file exists in the database directory.
+    * Unlike the other methods, this method does not create the file.
+    * @param filename the name of the file
+    * @return true if the file exists
+    */
+   public boolean exists(String filename) {
+      return openFiles.containsKey(filename) || new File(dbDirectory, filename).exists();
+   }
+
+   /**
+    * Closes and deletes the specified file.
+    * The caller must ensure that the file is no longer being read or written.
+    * @param filename the name of the file
+    */
+   public void delete(String filename) {
+      try {
+         close(filename);
+         Files.deleteIfExists(new File(dbDirectory, filename).toPath());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot delete " + filename);
+      }
+   }
+
+   /**
+    * Closes the specified file, and moves it into the specified directory,
+    * which is created if necessary.
+    * A relative directory is taken to be within the database directory.
+    * The caller must ensure that the file is no longer being read or written.
+    * The log manager calls this method to archive the log segments
+    * that recovery no longer needs.
+    * @param filename the name of the file
+    * @param dirname the name of the directory
+    */
+   public void archive(String filename, String dirname) {
+      File dir = new File(dirname);
+      if (!dir.isAbsolute())
+         dir = new File(dbDirectory, dirname);
+      try {
+         close(filename);
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException();
+         Files.move(new File(dbDirectory, filename).toPath(), new File(dir, filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot archive " + filename + " into " + dir);
+      }
+   }
+
+   /**
+    * Closes the specified file, if it is open, after forcing it onto the disk.
+    */
+   private void close(String filename) throws IOException {
+      OpenFile f;
+      synchronized (openFiles) {
+         f = openFiles.remove(filename);
+      }
+      if (f != null) {
+         force(filename, f);
+         f.channel.close();
+      }
+   }
+
+   /**
+    * Forces the blocks written to the specified file onto the disk.
+    * The log manager calls this method when it flushes the log,
+    * so that a log record is durable before any page that depends on it.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      force(filename, getFileQuietly(filename));
+   }
+
+   /**
+    * Forces the blocks written to every file of the database onto the disk,
+    * except for the files of temporary tables, which are not recovered.
+    * The buffer manager calls this method after it has flushed the
+    * buffers modified by recovery, before the checkpoint that ends it;
+    * the recovery manager calls it during each nonquiescent checkpoint,
+    * so that the pages written since their blocks were last dirtied are
+    * durable before the log that could redo them is archived.
+    */
+   public void forceAll() {
+      for (Map.Entry<String,OpenFile> e : openFiles.entrySet())
+         if (!e.getKey().startsWith("temp"))
+            force(e.getKey(), e.getValue());
+   }
+
+   /**
+    * Returns a read-only view of the specified disk block,
+    * which a page can use instead of reading the block into its own buffer.
+    * This file manager does not provide views, and returns null.
+    * @param blk a reference to a disk block
+    * @return a view of the block, or null if the block must be read
+    */
+   ByteBuffer view(Block blk) {
+      return null;
+   }
+
+   /**
+    * Returns the channel of the specified file, opening the file if necessary.
+    * @param filename the name of the file
+    * @return the file's channel
+    */
+   FileChannel channel(String filename) {
+      return getFileQuietly(filename).channel;
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -119,24 +366,129 @@ public class FileMgr {
    public boolean isNew() {
       return isNew;
    }
+   
+   /**
+    * Returns the number of bytes in a block of the database.
+    * Pages, log blocks, record pages and index pages all have this size.
+    * @return the block size of the database
+    */
+   public int blockSize() {
+      return blocksize;
+   }
+   
+   /**
+    * Creates the header file, and sets the block size.
+    * @param header the header file
+    * @param blocksize the block size of the database
+    */
+   private void writeHeader(File header, int blocksize) {
+      try (FileOutputStream out = new FileOutputStream(header)) {
+         DataOutputStream data = new DataOutputStream(out);
+         data.writeInt(HEADER_MAGIC);
+         data.writeInt(HEADER_VERSION);
+         data.writeInt(blocksize);
+         data.flush();
+         out.getFD().sync();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + header);
+      }
+      this.blocksize = blocksize;
+   }
+   
+   /**
+    * Reads and validates the header file.
+    * @param header the header file
+    * @return the block size recorded in the header
+    */
+   private int readHeader(File header) {
+      try (DataInputStream in = new DataInputStream(new FileInputStream(header))) {
+         int magic = in.readInt();
+         int version = in.readInt();
+         int size = in.readInt();
+         if (magic != HEADER_MAGIC || version != HEADER_VERSION)
+            throw new RuntimeException(header + " is not a SimpleDB header");
+         if (!Page.isValidBlockSize(size))
+            throw new RuntimeException(header + " has invalid block size " + size);
+         return size;
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + header);
+      }
+   }
 
    /**
-    * Returns the file channel for the specified filename.
-    * The file channel is stored in a map keyed on the filename.
-    * If the file is not open, then it is opened and the file channel
-    * is added to the map.
+    * Forces an open file onto the disk, if it has been written since it was last forced.
+    * The file's metadata is forced only if the file has grown.
+    */
+   private void force(String filename, OpenFile f) {
+      // a thread that finds the file unmodified must not return
+      // before a force started by another thread has finished
+      synchronized (f.forceLock) {
+         if (!f.modified)
+            return;
+         try {
+            f.modified = false;
+            boolean extended = f.extended;
+            f.extended = false;
+            f.channel.force(extended);
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot force " + filename);
+         }
+      }
+   }
+
+   private OpenFile getFileQuietly(String filename) {
+      try {
+         return getFile(filename);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + filename);
+      }
+   }
+
+   /**
+    * Returns the open file for the specified filename.
+    * The open files are stored in a map keyed on the filename.
+    * If the file is not open, then it is opened and
+    * added to the map.
+    * Only the opening of a file is synchronized; once open,
+    * a file is read and written without a global lock.
     * @param filename the specified filename
-    * @return the file channel associated with the open file.
+    * @return the open file
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
-      FileChannel fc = openFiles.get(filename);
-      if (fc == null) {
-         File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+   private OpenFile getFile(String filename) throws IOException {
+      OpenFile f = openFiles.get(filename);
+      if (f == null) {
+         synchronized (openFiles) {
+            f = openFiles.get(filename);
+            if (f == null) {
+               File dbTable = new File(dbDirectory, filename);
+               RandomAccessFile raf = new RandomAccessFile(dbTable, "rw");
+               f = new OpenFile(raf.getChannel());
+               openFiles.put(filename, f);
+            }
+         }
+      }
+      return f;
+   }
+
+   /**
+    * The channel of an open file, and whether it has been
+    * written or extended since it was last forced.
+    * The object's monitor serializes the operations that
+    * use the channel's position: appends and multi-block transfers.
+    */
+   private static class OpenFile {
+      final FileChannel channel;
+      final Object forceLock = new Object();
+      volatile boolean modified = false;
+      volatile boolean extended = false;
+
+      OpenFile(FileChannel channel) {
+         this.channel = channel;
       }
-      return fc;
    }
 }
@@ -0,0 +1,180 @@
+package simpledb.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file manager that maps the data files of the database into memory.
+ * A page that reads a block of a mapped file does not copy it:
+ * it gets a read-only view of the block within the mapping
+ * (see {@link #view(Block)}), and copies the block into its own
+ * buffer only when it is first modified.
+ * This suits databases whose tables are read much more often than written.
+ *
+ * A file is mapped up to its current end. When a page asks for a block
+ * that was appended after the file was mapped, the whole file is mapped again;
+ * views of the earlier mapping stay valid, since both mappings share the file's pages.
+ *
+ * Writing a page copies it into the mapping; the write happens only when a buffer
+ * is flushed, after the log manager has written the page's log records,
+ * exactly as with the basic file manager.
+ * The files of the log and of temporary tables are not mapped,
+ * and are read and written through their channels.
+ */
+public class MappedFileMgr extends FileMgr {
+   private String logfile;
+   private Map<String,Mapping> mappings = new ConcurrentHashMap<String,Mapping>();
+
+   /**
+    * Creates a file manager that maps the data files of the specified database.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size of the database, if it is new
+    * @param logfile the name of the log, whose segment and manifest files are not mapped
+    */
+   public MappedFileMgr(String dbname, int blocksize, String logfile) {
+      super(dbname, blocksize);
+      this.logfile = logfile;
+   }
+
+   /**
+    * Returns a read-only view of the specified block within the mapping of its file,
+    * remapping the file if the block was appended after it was mapped.
+    * Returns null if the file is not mapped, or if the block does not exist.
+    * @see simpledb.file.FileMgr#view(simpledb.file.Block)
+    */
+   @Override
+   ByteBuffer view(Block blk) {
+      MappedByteBuffer m = mapping(blk, true);
+      if (m == null)
+         return null;
+      ByteBuffer v = m.duplicate();
+      int offset = blk.number() * blockSize();
+      v.limit(offset + blockSize());
+      v.position(offset);
+      return v.slice().asReadOnlyBuffer();
+   }
+
+   /**
+    * Copies the contents of the bytebuffer into the mapping of the block,
+    * or writes it through the file's channel if the block is not mapped.
+    * @see simpledb.file.FileMgr#write(simpledb.file.Block, java.nio.ByteBuffer)
+    */
+   @Override
+   void write(Block blk, ByteBuffer bb) {
+      MappedByteBuffer m = mapping(blk, false);
+      if (m == null) {
+         super.write(blk, bb);
+         return;
+      }
+      ByteBuffer dst = m.duplicate();
+      dst.position(blk.number() * blockSize());
+      bb.rewind();
+      dst.put(bb);
+      mappings.get(blk.fileName()).modified = true;
+   }
+
+   /**
+    * Writes the bytebuffers into consecutive blocks one at a time,
+    * so that each block goes to the mapping if it is mapped.
+    * @see simpledb.file.FileMgr#write(simpledb.file.Block, java.nio.ByteBuffer[])
+    */
+   @Override
+   void write(Block first, ByteBuffer[] bbs) {
+      for (int i = 0; i < bbs.length; i++)
+         write(new Block(first.fileName(), first.number() + i), bbs[i]);
+   }
+
+   /**
+    * Forces the mapping of the file as well as the blocks written through its channel.
+    * @see simpledb.file.FileMgr#force(java.lang.String)
+    */
+   @Override
+   public void force(String filename) {
+      forceMapping(mappings.get(filename));
+      super.force(filename);
+   }
+
+   /**
+    * Forces the mappings of all files as well as the blocks written through their channels.
+    * @see simpledb.file.FileMgr#forceAll()
+    */
+   @Override
+   public void forceAll() {
+      for (Mapping mapping : mappings.values())
+         forceMapping(mapping);
+      super.forceAll();
+   }
+
+   private void forceMapping(Mapping mapping) {
+      if (mapping == null)
+         return;
+      synchronized (mapping.forceLock) {
+         if (!mapping.modified)
+            return;
+         mapping.modified = false;
+         mapping.buffer.force();
+      }
+   }
+
+   /**
+    * Returns the current mapping of the block's file if it contains the block.
+    * If it does not, and remapping is allowed, the file is mapped again up to its end.
+    * @param blk a reference to a disk block
+    * @param remap whether the file can be remapped to contain the block
+    * @return the mapping, or null if the block is not mapped
+    */
+   private MappedByteBuffer mapping(Block blk, boolean remap) {
+      String filename = blk.fileName();
+      if (filename.startsWith(logfile) || filename.startsWith("temp"))
+         return null;
+      Mapping mapping = mappings.get(filename);
+      if (mapping == null) {
+         if (!remap)
+            return null;
+         synchronized (mappings) {
+            mapping = mappings.get(filename);
+            if (mapping == null) {
+               mapping = new Mapping();
+               mappings.put(filename, mapping);
+            }
+         }
+      }
+      long end = (long) (blk.number() + 1) * blockSize();
+      MappedByteBuffer m = mapping.buffer;
+      if (m != null && m.capacity() >= end)
+         return m;
+      if (!remap)
+         return null;
+      synchronized (mapping) {
+         m = mapping.buffer;
+         if (m != null && m.capacity() >= end)
+            return m;
+         try {
+            FileChannel fc = channel(filename);
+            long size = fc.size() / blockSize() * blockSize();
+            if (size < end || size > Integer.MAX_VALUE)
+               return null;
+            m = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.buffer = m;
+            return m;
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot map " + filename);
+         }
+      }
+   }
+
+   /**
+    * The current mapping of a file, and whether it has been
+    * written since it was last forced.
+    */
+   private static class Mapping {
+      final Object forceLock = new Object();
+      volatile MappedByteBuffer buffer = null;
+      volatile boolean modified = false;
+   }
+}
@@ -6,10 +6,24 @@ import java.nio.charset.Charset;
 
 /**
  * The contents of a disk block in memory.
- * A page is treated as an array of BLOCK_SIZE bytes.
+ * A page is treated as an array of bytes, whose length
+ * is the block size of the database
+ * (see {@link FileMgr#blockSize()}).
  * There are methods to get/set values into this array,
  * and to read/write the contents of this array to a disk block.
  * 
+ * The get/set methods use absolute positions in the page's
+ * byte buffer, and are not synchronized; concurrent access
+ * to a page is controlled by its user, such as the latches of
+ * a {@link simpledb.buffer.Buffer} or the lock of the log manager.
+ * The read/write methods use the buffer's position,
+ * and are synchronized with each other.
+ * A page of a memory-mapped file (see {@link MappedFileMgr}) initially
+ * views the block in place, and is copied the first time it is modified.
+ * The static read/write methods transfer several pages to or from
+ * consecutive blocks at once; they do not lock the pages, so their
+ * caller must keep the pages from being modified meanwhile.
+ * 
  * For an example of how to use Page and 
  * {@link Block} objects, 
  * consider the following code fragment.  
@@ -37,12 +51,24 @@ import java.nio.charset.Charset;
  */
 public class Page {
    /**
-    * The number of bytes in a block.
+    * The number of bytes in a block of a newly created database,
+    * unless a different block size is requested.
+    */
+   public static final int DEFAULT_BLOCK_SIZE = 4096;
+   
+   /**
+    * The smallest and largest block sizes that can be requested
+    * for a new database. Block sizes must be powers of two.
+    */
+   public static final int MIN_BLOCK_SIZE = 4096, MAX_BLOCK_SIZE = 65536;
+   
+   /**
+    * The number of bytes in a block of a database created before
+    * the block size was configurable.
     * This value is set unreasonably low, so that it is easier
     * to create and test databases having a lot of blocks.
-    * A more realistic value would be 4K.
     */
-   public static final int BLOCK_SIZE = 400;
+   public static final int LEGACY_BLOCK_SIZE = 400;
    
    /**
     * The size of an integer in bytes.
@@ -51,6 +77,11 @@ public class Page {
     */
    public static final int INT_SIZE = Integer.SIZE / Byte.SIZE;
    
+   /**
+    * The size of a long integer in bytes.
+    */
+   public static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+   
    /**
     * The maximum size, in bytes, of a string of length n.
     * A string is represented as the encoding of its characters,
@@ -66,8 +97,10 @@ public class Page {
       return INT_SIZE + (n * (int)bytesPerChar);
    }
    
-   private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
    private FileMgr filemgr = SimpleDB.fileMgr();
+   private ByteBuffer own = ByteBuffer.allocateDirect(filemgr.blockSize());
+   private ByteBuffer contents = own;
+   private boolean shared = false; // true if contents is a view of a mapped block
    
    /**
     * Creates a new page.  Although the constructor takes no arguments,
@@ -83,12 +116,36 @@ public class Page {
     */
    public Page() {}
    
+   /**
+    * Returns true if a database can have blocks of the specified size.
+    * @param blocksize the number of bytes in a block
+    * @return true if the block size is valid
+    */
+   public static boolean isValidBlockSize(int blocksize) {
+      if (blocksize == LEGACY_BLOCK_SIZE)
+         return true;
+      return blocksize >= MIN_BLOCK_SIZE && blocksize <= MAX_BLOCK_SIZE
+            && Integer.bitCount(blocksize) == 1;
+   }
+   
    /**
     * Populates the page with the contents of the specified disk block. 
+    * If the file manager maps the block's file into memory, the page
+    * uses a read-only view of the block instead of copying it,
+    * until the page is first modified.
     * @param blk a reference to a disk block
     */
    public synchronized void read(Block blk) {
-      filemgr.read(blk, contents);
+      ByteBuffer view = filemgr.view(blk);
+      if (view != null) {
+         contents = view;
+         shared = true;
+      }
+      else {
+         contents = own;
+         shared = false;
+         filemgr.read(blk, contents);
+      }
    }
    
    /**
@@ -108,6 +165,47 @@ public class Page {
       return filemgr.append(filename, contents);
    }
    
+   /**
+    * Populates the specified pages with the contents of consecutive disk blocks,
+    * starting with the specified block, using a single scattering read.
+    * @param first a reference to the first disk block
+    * @param pages the pages to populate, one per block
+    */
+   public static void read(Block first, Page[] pages) {
+      if (pages[0].filemgr.view(first) != null) {
+         for (int i = 0; i < pages.length; i++)
+            pages[i].read(new Block(first.fileName(), first.number() + i));
+         return;
+      }
+      for (Page p : pages) {
+         p.contents = p.own;
+         p.shared = false;
+      }
+      pages[0].filemgr.read(first, views(pages));
+   }
+   
+   /**
+    * Writes the contents of the specified pages to consecutive disk blocks,
+    * starting with the specified block, using a single gathering write.
+    * @param first a reference to the first disk block
+    * @param pages the pages to write, one per block
+    */
+   public static void write(Block first, Page[] pages) {
+      pages[0].filemgr.write(first, views(pages));
+   }
+   
+   /**
+    * Returns independent views of the contents of the pages,
+    * so that a multi-block transfer does not disturb the position
+    * used by the single-block read and write methods.
+    */
+   private static ByteBuffer[] views(Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i = 0; i < pages.length; i++)
+         bbs[i] = pages[i].contents.duplicate();
+      return bbs;
+   }
+   
    /**
     * Returns the integer value at a specified offset of the page.
     * If an integer was not stored at that location, 
@@ -115,9 +213,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the integer value at that offset
     */
-   public synchronized int getInt(int offset) {
-      contents.position(offset);
-      return contents.getInt();
+   public int getInt(int offset) {
+      return contents.getInt(offset);
    }
    
    /**
@@ -125,9 +222,59 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the integer to be written to the page
     */
-   public synchronized void setInt(int offset, int val) {
-      contents.position(offset);
-      contents.putInt(val);
+   public void setInt(int offset, int val) {
+      if (shared)
+         copyOnWrite();
+      contents.putInt(offset, val);
+   }
+   
+   /**
+    * Returns the long integer value at a specified offset of the page.
+    * If a long integer was not stored at that location, 
+    * the behavior of the method is unpredictable.
+    * @param offset the byte offset within the page
+    * @return the long integer value at that offset
+    */
+   public long getLong(int offset) {
+      return contents.getLong(offset);
+   }
+   
+   /**
+    * Writes a long integer to the specified offset on the page.
+    * @param offset the byte offset within the page
+    * @param val the long integer to be written to the page
+    */
+   public void setLong(int offset, long val) {
+      if (shared)
+         copyOnWrite();
+      contents.putLong(offset, val);
+   }
+   
+   /**
+    * Returns a copy of the bytes at the specified offset of the page.
+    * @param offset the byte offset within the page
+    * @param length the number of bytes
+    * @return the bytes
+    */
+   public byte[] getBytes(int offset, int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer view = contents.duplicate();
+      view.position(offset);
+      view.get(bytes);
+      return bytes;
+   }
+   
+   /**
+    * Writes the specified bytes to the specified offset of the page.
+    * @param offset the byte offset within the page
+    * @param val the bytes to be written to the page
+    */
+   public void setBytes(int offset, byte[] val) {
+      if (shared)
+         copyOnWrite();
+      ByteBuffer view = contents.duplicate();
+      view.position(offset);
+      view.put(val);
    }
    
    /**
@@ -137,11 +284,12 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the string value at that offset
     */
-   public synchronized String getString(int offset) {
-      contents.position(offset);
-      int len = contents.getInt();
+   public String getString(int offset) {
+      int len = contents.getInt(offset);
       byte[] byteval = new byte[len];
-      contents.get(byteval);
+      int pos = offset + INT_SIZE;
+      for (int i = 0; i < len; i++)
+         byteval[i] = contents.get(pos + i);
       return new String(byteval);
    }
    
@@ -150,10 +298,26 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the string to be written to the page
     */
-   public synchronized void setString(int offset, String val) {
-      contents.position(offset);
+   public void setString(int offset, String val) {
+      if (shared)
+         copyOnWrite();
       byte[] byteval = val.getBytes();
-      contents.putInt(byteval.length);
-      contents.put(byteval);
+      contents.putInt(offset, byteval.length);
+      int pos = offset + INT_SIZE;
+      for (int i = 0; i < byteval.length; i++)
+         contents.put(pos + i, byteval[i]);
+   }
+   
+   /**
+    * Copies the mapped block that the page is viewing into the page's own buffer,
+    * so that a modification is not seen by the file before the page is written.
+    */
+   private void copyOnWrite() {
+      ByteBuffer view = contents.duplicate();
+      view.clear();
+      own.clear();
+      own.put(view);
+      contents = own;
+      shared = false;
    }
 }
@@ -5,13 +5,21 @@ import static simpledb.file.Page.*;
 import simpledb.file.Block;
 import simpledb.record.*;
 import simpledb.query.*;
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
+import java.nio.ByteBuffer;
 
 /**
  * B-tree directory and leaf pages have many commonalities:
  * in particular, their records are stored in sorted order, 
  * and pages split when full.
  * A BTreePage object contains this common functionality.
+ * <p>
+ * Records are moved by whole ranges of slots: shifting the records
+ * of a page writes their bytes with one update, and splitting a page
+ * writes the entire contents of the new page with one redo-only update
+ * (see {@link Transaction#format(Block, byte[])}), instead of copying
+ * each field of each record with its own log record.
  * @author Edward Sciore
  */
 public class BTreePage {
@@ -62,7 +70,7 @@ public class BTreePage {
     * @return true if the block is full
     */
    public boolean isFull() {
-      return slotpos(getNumRecs()+1) >= BLOCK_SIZE;
+      return slotpos(getNumRecs()+1) >= SimpleDB.fileMgr().blockSize();
    }
    
    /**
@@ -76,8 +84,7 @@ public class BTreePage {
    public Block split(int splitpos, int flag) {
       Block newblk = appendNew(flag);
       BTreePage newpage = new BTreePage(newblk, ti, tx);
-      transferRecs(splitpos, newpage);
-      newpage.setFlag(flag);
+      transferRecs(splitpos, newpage, flag);
       newpage.close();
       return newblk;
    }
@@ -170,10 +177,9 @@ public class BTreePage {
     * @param slot the slot of the deleted index record
     */
    public void delete(int slot) {
-      for (int i=slot+1; i<getNumRecs(); i++)
-         copyRecord(i, i-1);
-      setNumRecs(getNumRecs()-1);
-      return;
+      int numrecs = getNumRecs();
+      moveRecs(slot+1, slot, numrecs-slot-1);
+      setNumRecs(numrecs-1);
    }
    
    /**
@@ -227,27 +233,36 @@ public class BTreePage {
    }
    
    private void insert(int slot) {
-      for (int i=getNumRecs(); i>slot; i--)
-         copyRecord(i-1, i);
-      setNumRecs(getNumRecs()+1);
+      int numrecs = getNumRecs();
+      moveRecs(slot, slot+1, numrecs-slot);
+      setNumRecs(numrecs+1);
    }
    
-   private void copyRecord(int from, int to) {
-      Schema sch = ti.schema();
-      for (String fldname : sch.fields())
-         setVal(to, fldname, getVal(from, fldname));
+   /**
+    * Moves the specified number of records from one slot to another,
+    * as a single range of bytes.
+    */
+   private void moveRecs(int from, int to, int count) {
+      if (count <= 0)
+         return;
+      byte[] recs = tx.getBytes(currentblk, slotpos(from), count * slotsize);
+      tx.setBytes(currentblk, slotpos(to), recs);
    }
    
-   private void transferRecs(int slot, BTreePage dest) {
-      int destslot = 0;
-      while (slot < getNumRecs()) {
-         dest.insert(destslot);
-         Schema sch = ti.schema();
-         for (String fldname : sch.fields())
-            dest.setVal(destslot, fldname, getVal(slot, fldname));
-         delete(slot);
-         destslot++;
-      }
+   /**
+    * Transfers the records from the specified slot on to the
+    * new page, which is written as a whole: its flag, its number
+    * of records, and the records themselves.
+    * The records are then removed from this page by lowering
+    * its number of records.
+    */
+   private void transferRecs(int slot, BTreePage dest, int flag) {
+      int count = getNumRecs() - slot;
+      byte[] recs = tx.getBytes(currentblk, slotpos(slot), count * slotsize);
+      ByteBuffer image = ByteBuffer.allocate(slotpos(count));
+      image.putInt(flag).putInt(count).put(recs);
+      tx.format(dest.currentblk, image.array());
+      setNumRecs(slot);
    }
    
    private int fldpos(int slot, String fldname) {
@@ -17,17 +17,39 @@ import simpledb.file.Page;
 public class BasicLogRecord {
    private Page pg;
    private int pos;
+   private long lsn;
    
    /**
     * A log record located at the specified position of the specified page.
-    * This constructor is called exclusively by
-    * {@link LogIterator#next()}.
     * @param pg the page containing the log record
     * @param pos the position of the log record 
     */
    public BasicLogRecord(Page pg, int pos) {
+      this(pg, pos, -1);
+   }
+   
+   /**
+    * A log record located at the specified position of the specified page,
+    * having the specified LSN.
+    * This constructor is called by the log iterators
+    * (see {@link LogIterator#next()}).
+    * @param pg the page containing the log record
+    * @param pos the position of the log record 
+    * @param lsn the LSN of the log record
+    */
+   public BasicLogRecord(Page pg, int pos, long lsn) {
       this.pg = pg;
       this.pos = pos;
+      this.lsn = lsn;
+   }
+   
+   /**
+    * Returns the LSN of the log record, which is the
+    * offset of its end within the log.
+    * @return the LSN, or a negative value if it is not known
+    */
+   public long lsn() {
+      return lsn;
    }
    
    /**
@@ -41,6 +63,29 @@ public class BasicLogRecord {
       return result;
    }
    
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is a long integer.
+    * @return the next value of the current log record
+    */
+   public long nextLong() {
+      long result = pg.getLong(pos);
+      pos += LONG_SIZE;
+      return result;
+   }
+   
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is an array of bytes preceded by its length.
+    * @return the next value of the current log record
+    */
+   public byte[] nextBytes() {
+      int len = pg.getInt(pos);
+      byte[] result = pg.getBytes(pos + INT_SIZE, len);
+      pos += INT_SIZE + len;
+      return result;
+   }
+   
    /**
     * Returns the next value of the current log record, 
     * assuming it is a string.
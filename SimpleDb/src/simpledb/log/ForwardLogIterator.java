@@ -0,0 +1,104 @@
+package simpledb.log;
+
+import static simpledb.log.LogMgr.*;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log file in log order, starting from a given LSN.
+ * Each record is found from the length at its start,
+ * and its checksum is checked before it is returned.
+ * The blocks are read forward in chunks (see {@link LogReader}).
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogReader reader;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private long from, end;
+   private int blknum, lastblk;
+   private Page pg;
+   private int currentrec, blockEnd;
+   private int currentlen = -1; // the length of the current record, once it is checked
+   
+   /**
+    * Creates an iterator for the records in the log file
+    * whose LSN lies between the specified offsets,
+    * positioned at the start of the block holding the first of them,
+    * or at the first block of the log if that block has been archived.
+    * This constructor is called exclusively by
+    * {@link LogMgr#forwardIterator(long)}.
+    * @param logMgr the log manager
+    * @param from the smallest LSN of a record to return
+    * @param end the offset of the end of the last record
+    */
+   ForwardLogIterator(LogMgr logMgr, long from, long end) {
+      this.from = from;
+      this.end = end;
+      lastblk = (int) (end / blocksize);
+      reader = new LogReader(logMgr, lastblk);
+      int firstblk = (int) (Math.min(Math.max(0, from), end) / blocksize);
+      blknum = Math.max(firstblk, logMgr.firstBlock()) - 1;
+      moveToNextBlock();
+   }
+   
+   /**
+    * Determines if there is a later record in the log file,
+    * skipping the records of the first block whose LSN is
+    * smaller than the requested one.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (true) {
+         while (currentrec >= blockEnd && blknum < lastblk)
+            moveToNextBlock();
+         if (currentrec >= blockEnd)
+            return false;
+         long blockStart = (long) blknum * blocksize;
+         if (currentlen < 0) {
+            currentlen = recordLength(pg, blockStart, currentrec, blockEnd);
+            if (currentlen < 0)
+               throw new RuntimeException("corrupt log record at offset " + (blockStart + currentrec));
+         }
+         if (blockStart + currentrec + currentlen + FRAME_SIZE >= from)
+            return true;
+         currentrec += currentlen + FRAME_SIZE;
+         currentlen = -1;
+      }
+   }
+   
+   /**
+    * Moves to the next log record in log order.
+    * If the current log record is the latest in its block,
+    * then the method moves to the next block,
+    * and returns the first log record from there.
+    * @return the next later log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      long blockStart = (long) blknum * blocksize;
+      int start = currentrec;
+      currentrec += currentlen + FRAME_SIZE;
+      currentlen = -1;
+      return new BasicLogRecord(pg, start + Page.INT_SIZE, blockStart + currentrec);
+   }
+   
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+   
+   /**
+    * Moves to the next log block in log order,
+    * and positions it before the first record in that block.
+    * The records of the last block are read only up to the end of the log
+    * at the time the iterator was created.
+    */
+   private void moveToNextBlock() {
+      blknum++;
+      pg = reader.page(blknum, true);
+      currentrec = HEADER_SIZE;
+      blockEnd = blknum < lastblk ? pg.getInt(LAST_POS) : (int) (end % blocksize);
+   }
+}
@@ -0,0 +1,26 @@
+package simpledb.log;
+
+/**
+ * The management interface of group commit, which is registered
+ * with the platform MBean server under the name
+ * {@code simpledb:type=GroupCommit}.
+ * Commit latencies are the times that commits and rollbacks
+ * waited for their log records to be flushed.
+ */
+public interface GroupCommitMXBean {
+   long getCommits();
+
+   long getGroups();
+
+   double getAverageGroupSize();
+
+   long getCommitLatencyP50Micros();
+
+   long getCommitLatencyP99Micros();
+
+   long getMaxCommitLatencyMicros();
+
+   long[] getCommitLatencyHistogram();
+
+   long[] getCommitLatencyHistogramBoundsMicros();
+}
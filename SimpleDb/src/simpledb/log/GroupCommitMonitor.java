@@ -0,0 +1,58 @@
+package simpledb.log;
+
+import java.util.concurrent.TimeUnit;
+
+import simpledb.server.LatencyHistogram;
+
+/**
+ * Exposes the group commit statistics of a log manager
+ * as a {@link GroupCommitMXBean}.
+ */
+public class GroupCommitMonitor implements GroupCommitMXBean {
+   private LogMgr logMgr;
+
+   public GroupCommitMonitor(LogMgr logMgr) {
+      this.logMgr = logMgr;
+   }
+
+   @Override
+   public long getCommits() {
+      return logMgr.groupedFlushes();
+   }
+
+   @Override
+   public long getGroups() {
+      return logMgr.groups();
+   }
+
+   @Override
+   public double getAverageGroupSize() {
+      long groups = logMgr.groups();
+      return groups == 0 ? 0 : (double) logMgr.groupedFlushes() / groups;
+   }
+
+   @Override
+   public long getCommitLatencyP50Micros() {
+      return LatencyHistogram.percentileMicros(logMgr.commitLatency().counts(), 50);
+   }
+
+   @Override
+   public long getCommitLatencyP99Micros() {
+      return LatencyHistogram.percentileMicros(logMgr.commitLatency().counts(), 99);
+   }
+
+   @Override
+   public long getMaxCommitLatencyMicros() {
+      return TimeUnit.NANOSECONDS.toMicros(logMgr.commitLatency().maxNanos());
+   }
+
+   @Override
+   public long[] getCommitLatencyHistogram() {
+      return logMgr.commitLatency().counts();
+   }
+
+   @Override
+   public long[] getCommitLatencyHistogramBoundsMicros() {
+      return LatencyHistogram.upperBoundsMicros();
+   }
+}
@@ -0,0 +1,63 @@
+package simpledb.log;
+
+import static simpledb.file.Page.INT_SIZE;
+import static simpledb.log.LogMgr.*;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+
+/**
+ * A class that reads individual records of the log by their LSN,
+ * in any order, such as the records of a transaction that are
+ * chained together by their previous LSNs.
+ * Each record is found from the length at its end, and its checksum
+ * is checked before it is returned, as by a {@link LogIterator}.
+ * The blocks are read backward in chunks (see {@link LogReader}),
+ * so that records close together before the last one read
+ * are found without another read.
+ */
+public class LogCursor {
+   private LogReader reader;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private long end;
+
+   /**
+    * Creates a cursor for the records of the log that end
+    * at or before the specified offset.
+    * This constructor is called exclusively by
+    * {@link LogMgr#cursor()}.
+    * @param logMgr the log manager
+    * @param end the offset of the end of the last record
+    */
+   LogCursor(LogMgr logMgr, long end) {
+      this.end = end;
+      reader = new LogReader(logMgr, (int) (end / blocksize));
+   }
+
+   /**
+    * Returns the offset of the end of the last record that the cursor can read.
+    * @return the end of the cursor's part of the log
+    */
+   public long end() {
+      return end;
+   }
+
+   /**
+    * Returns the log record having the specified LSN.
+    * The record can be read only until the cursor reads another record.
+    * @param lsn the LSN of a log record
+    * @return the log record
+    */
+   public BasicLogRecord read(long lsn) {
+      if (lsn <= 0 || lsn > end)
+         throw new RuntimeException("no log record at offset " + lsn);
+      int blknum = (int) ((lsn - 1) / blocksize);
+      long blockStart = (long) blknum * blocksize;
+      int recend = (int) (lsn - blockStart);
+      Page pg = reader.page(blknum, false);
+      int len = recend >= HEADER_SIZE + INT_SIZE ? pg.getInt(recend - INT_SIZE) : -1;
+      int start = recend - len - FRAME_SIZE;
+      if (len < 0 || start < HEADER_SIZE || recordLength(pg, blockStart, start, recend) != len)
+         throw new RuntimeException("corrupt log record at offset " + lsn);
+      return new BasicLogRecord(pg, start + INT_SIZE, lsn);
+   }
+}
@@ -0,0 +1,30 @@
+package simpledb.log;
+
+import simpledb.file.Page;
+
+/**
+ * A log record that can write itself into the log.
+ * The log manager reserves space for the record in a log page,
+ * and the record writes its values directly into that space,
+ * so that appending a record does not allocate.
+ * The values must be written as by {@link Page#setInt(int, int)},
+ * {@link Page#setLong(int, long)} and
+ * {@link Page#setString(int, String)}, with a string taking
+ * {@link Page#STR_SIZE(int)} bytes,
+ * so that they can be read back by {@link BasicLogRecord}.
+ */
+public interface LogEncodable {
+   /**
+    * Returns the number of bytes that the values of the record take in the log.
+    * @return the size of the record's values
+    */
+   int encodedSize();
+
+   /**
+    * Writes the values of the record into the page,
+    * starting at the specified position.
+    * @param page the log page
+    * @param pos the position of the first value
+    */
+   void encode(Page page, int pos);
+}
@@ -1,30 +1,42 @@
 package simpledb.log;
 
 import static simpledb.file.Page.INT_SIZE;
+import static simpledb.log.LogMgr.*;
 import simpledb.file.*;
+import simpledb.server.SimpleDB;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A class that provides the ability to move through the
  * records of the log file in reverse order.
+ * Each record is found from the length at its end,
+ * and its checksum is checked before it is returned.
+ * The blocks are read backward in chunks (see {@link LogReader}).
  * 
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
-   private Page pg = new Page();
+   private LogReader reader;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private int blknum, firstblk;
+   private Page pg;
    private int currentrec;
    
    /**
     * Creates an iterator for the records in the log file,
-    * positioned after the last log record.
+    * positioned after the log record that ends at the specified offset.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logMgr the log manager
+    * @param end the offset of the end of the last record
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
-      currentrec = pg.getInt(LogMgr.LAST_POS);
+   LogIterator(LogMgr logMgr, long end) {
+      blknum = (int) (end / blocksize);
+      firstblk = logMgr.firstBlock();
+      reader = new LogReader(logMgr, blknum);
+      pg = reader.page(blknum, false);
+      currentrec = (int) (end % blocksize);
    }
    
    /**
@@ -33,7 +45,9 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      while (currentrec <= HEADER_SIZE && blknum > firstblk)
+         moveToNextBlock();
+      return currentrec > HEADER_SIZE;
    }
    
    /**
@@ -44,10 +58,16 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * @return the next earliest log record
     */
    public BasicLogRecord next() {
-      if (currentrec == 0) 
-         moveToNextBlock();
-      currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      if (!hasNext())
+         throw new NoSuchElementException();
+      long blockStart = (long) blknum * blocksize;
+      long lsn = blockStart + currentrec;
+      int len = pg.getInt(currentrec - INT_SIZE);
+      int start = currentrec - len - FRAME_SIZE;
+      if (start < HEADER_SIZE || recordLength(pg, blockStart, start, currentrec) != len)
+         throw new RuntimeException("corrupt log record at offset " + lsn);
+      currentrec = start;
+      return new BasicLogRecord(pg, start + INT_SIZE, lsn);
    }
    
    public void remove() {
@@ -59,8 +79,8 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * and positions it after the last record in that block.
     */
    private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
-      currentrec = pg.getInt(LogMgr.LAST_POS);
+      blknum--;
+      pg = reader.page(blknum, false);
+      currentrec = pg.getInt(LAST_POS);
    }
 }
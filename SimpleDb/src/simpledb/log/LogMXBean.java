@@ -0,0 +1,24 @@
+package simpledb.log;
+
+/**
+ * The management interface of the log, which is registered
+ * with the platform MBean server under the name
+ * {@code simpledb:type=Log}.
+ * The rate at which the log grows is measured over the
+ * interval since the previous call of {@link #getBytesPerSecond()}.
+ */
+public interface LogMXBean {
+   long getEndLSN();
+
+   long getFlushedLSN();
+
+   long getBytesAppended();
+
+   double getBytesPerSecond();
+
+   long getSegmentSize();
+
+   int getFirstSegment();
+
+   int getRetainedSegments();
+}
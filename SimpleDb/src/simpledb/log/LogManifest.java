@@ -0,0 +1,100 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+import java.util.zip.CRC32;
+
+/**
+ * The manifest of a segmented log, which records the number of blocks
+ * in a segment and the first segment that is still part of the log.
+ * Segment files before the first segment have been archived or deleted.
+ * <p>
+ * The manifest file has two slots of one block each, which are written
+ * alternately. Each slot holds a sequence number and a checksum, and the
+ * manifest is the valid slot with the highest sequence number, so that
+ * a write that is torn by a crash leaves the previous manifest intact.
+ */
+class LogManifest {
+   private static final int MAGIC = 0x53444C4D; // "SDLM"
+   private static final int VERSION = 1;
+   private static final int SEQ_POS = 2 * INT_SIZE;
+   private static final int SEGMENT_BLOCKS_POS = SEQ_POS + LONG_SIZE;
+   private static final int FIRST_SEGMENT_POS = SEGMENT_BLOCKS_POS + INT_SIZE;
+   private static final int CHECKSUM_POS = FIRST_SEGMENT_POS + INT_SIZE;
+
+   private String filename;
+   private Page pg = new Page();
+   private long seq = 0;
+   private int segmentBlocks;
+   private int firstSegment = 0;
+
+   /**
+    * Reads the manifest from the specified file, or creates the manifest
+    * of a new log if the file does not exist or has no valid slot.
+    * @param filename the name of the manifest file
+    * @param segmentBlocks the number of blocks in a segment of a new log
+    */
+   LogManifest(String filename, int segmentBlocks) {
+      this.filename = filename;
+      this.segmentBlocks = segmentBlocks;
+      boolean found = false;
+      int slots = SimpleDB.fileMgr().size(filename);
+      for (int slot = 0; slot < Math.min(2, slots); slot++) {
+         pg.read(new Block(filename, slot));
+         if (isValid() && (!found || pg.getLong(SEQ_POS) > seq)) {
+            found = true;
+            seq = pg.getLong(SEQ_POS);
+            this.segmentBlocks = pg.getInt(SEGMENT_BLOCKS_POS);
+            firstSegment = pg.getInt(FIRST_SEGMENT_POS);
+         }
+      }
+      if (!found)
+         setFirstSegment(0);
+   }
+
+   /**
+    * Returns the number of blocks in a segment of the log.
+    * @return the number of blocks in a segment
+    */
+   int segmentBlocks() {
+      return segmentBlocks;
+   }
+
+   /**
+    * Returns the number of the first segment of the log.
+    * @return the first segment
+    */
+   int firstSegment() {
+      return firstSegment;
+   }
+
+   /**
+    * Records a new first segment in the next slot of the manifest,
+    * and forces it to disk.
+    * @param segment the number of the first segment
+    */
+   void setFirstSegment(int segment) {
+      seq++;
+      firstSegment = segment;
+      pg.setInt(0, MAGIC);
+      pg.setInt(INT_SIZE, VERSION);
+      pg.setLong(SEQ_POS, seq);
+      pg.setInt(SEGMENT_BLOCKS_POS, segmentBlocks);
+      pg.setInt(FIRST_SEGMENT_POS, segment);
+      pg.setInt(CHECKSUM_POS, checksum());
+      pg.write(new Block(filename, (int) (seq % 2)));
+      SimpleDB.fileMgr().force(filename);
+   }
+
+   private boolean isValid() {
+      return pg.getInt(0) == MAGIC && pg.getInt(INT_SIZE) == VERSION
+            && pg.getInt(CHECKSUM_POS) == checksum();
+   }
+
+   private int checksum() {
+      CRC32 crc = new CRC32();
+      crc.update(pg.getBytes(0, CHECKSUM_POS));
+      return (int) crc.getValue();
+   }
+}
@@ -2,8 +2,12 @@ package simpledb.log;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import simpledb.server.LatencyHistogram;
 import static simpledb.file.Page.*;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The low-level log manager.
@@ -13,24 +17,111 @@ import java.util.*;
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * 
+ * The LSN of a log record is the byte offset of its end within the log:
+ * the block number times the block size, plus the position in the block
+ * just after the record. A record is on disk once the log has been
+ * flushed up to its LSN, which the log manager keeps track of,
+ * so that flushing an LSN that is already on disk costs nothing.
+ * 
+ * The log manager keeps the last few blocks of the log in a ring of pages.
+ * Records are appended to the page of the current block; when it is full,
+ * the next block is started in the next page of the ring, while the full
+ * page waits to be written. Flushing writes the full pages in block order
+ * (consecutive blocks with a single gathering write), and then the current page;
+ * an appender waits only when the ring has no free page.
+ * 
+ * Appending does not lock the log manager. An appender reserves the space for
+ * its record by advancing the end of the log with a compare-and-set, and then
+ * encodes the record (see {@link LogEncodable}) directly into the reserved space,
+ * concurrently with other appenders. The appenders of a block then publish their records in the order of their
+ * reservations, so that the published part of a block is always a sequence of
+ * complete records, which is what a flush writes. Only starting a new block
+ * takes the log manager's lock.
+ * 
+ * Each record is framed by its length on both ends, so that the log can be
+ * read forward as well as backward, and carries a CRC-32 checksum of its
+ * contents and its offset in the log:
+ * <pre>
+ *    [length][contents][checksum][length]
+ * </pre>
+ * Each block starts with a header holding the end of its records and the
+ * end of the records of the previous block, which chains the blocks together.
+ * A write of the log that was torn by a crash therefore shows up as a record
+ * whose checksum is wrong, or as a block that does not follow its predecessor.
+ * When the log manager is created, it checks the records of the blocks that
+ * may have been written since the log was last forced, and discards the log
+ * from the first bad record on, so that recovery sees only complete records.
+ * 
+ * The log is stored in segment files of a fixed number of blocks, named
+ * after the log and numbered from 0, so that segment <i>k</i> holds the blocks
+ * of the log from <i>k</i> times the segment size on. A manifest file
+ * (see {@link LogManifest}) records the segment size and the first segment
+ * still in the log. Once a checkpoint has determined the LSN before which
+ * recovery no longer needs the log, the segments before the one holding that
+ * LSN are moved to an archive directory, or deleted if there is none
+ * (see {@link #archiveBefore(long)}).
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
    /**
-    * The location where the pointer to the last integer in the page is.
-    * A value of 0 means that the pointer is the first value in the page.
+    * The location in a block of the end of its last record.
     */
    public static final int LAST_POS = 0;
 
+   /**
+    * The location in a block of the end of the records of the previous block,
+    * which is 0 in the first block.
+    */
+   public static final int PREV_END_POS = INT_SIZE;
+
+   /**
+    * The size of the header of a block; the first record starts after it.
+    */
+   public static final int HEADER_SIZE = 2 * INT_SIZE;
+
+   /**
+    * The number of bytes that frame the contents of a record:
+    * the length on both ends, and the checksum.
+    */
+   public static final int FRAME_SIZE = 3 * INT_SIZE;
+
+   /**
+    * The number of pages in the ring of log buffers, unless another number is requested.
+    */
+   public static final int DEFAULT_LOG_BUFFERS = 8;
+
+   /**
+    * The number of blocks in a segment of a new log, unless another number is requested.
+    */
+   public static final int DEFAULT_SEGMENT_BLOCKS = 4096;
+
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
-   private int currentpos;
+   private String archiveDir;
+   private int blocksize = SimpleDB.fileMgr().blockSize();
+   private LogManifest manifest;
+   private int segmentBlocks;
+   private volatile int firstblk; // the first block of the first segment of the log
+   private long startLSN; // the end of the log when the log manager was created
+   private long discarded = 0; // the bytes of the corrupt tail discarded at startup
+   private int unforcedLow = Integer.MAX_VALUE, unforcedHigh = -1; // the segments written since the last force
+   private Page[] ring;
+   private AtomicInteger[] published; // per page: the end of its complete records
+   private int[] sealedEnd; // per page: the end of the records of a full block
+   private AtomicLong tail; // the offset in the log at which the next record is reserved
+   private volatile int writtenblk; // the blocks up to this one are written and will not change
+   private volatile long flushedLSN = 0; // the log is on disk up to this offset
+   private final Object flushLock = new Object(); // serializes the writing of the log
+   private volatile LogWriter writer;
+   private LatencyHistogram commitLatency = new LatencyHistogram();
+   private AtomicLong groups = new AtomicLong();
+   private AtomicLong groupedFlushes = new AtomicLong();
 
    /**
-    * Creates the manager for the specified log file.
-    * If the log file does not yet exist, it is created
-    * with an empty first block.
+    * Creates the manager for the specified log.
+    * If the log does not yet exist, it is created
+    * with an empty first block; otherwise its tail is checked,
+    * and discarded from the first corrupt record on.
     * This constructor depends on a {@link FileMgr} object
     * that it gets from the method
     * {@link simpledb.server.SimpleDB#fileMgr()}.
@@ -38,75 +129,426 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * Thus this constructor cannot be called until
     * {@link simpledb.server.SimpleDB#initFileMgr(String)}
     * is called first.
-    * @param logfile the name of the log file
+    * @param logfile the name of the log
     */
    public LogMgr(String logfile) {
+      this(logfile, DEFAULT_LOG_BUFFERS);
+   }
+
+   /**
+    * Creates the manager for the specified log,
+    * which keeps the specified number of log blocks in memory.
+    * @param logfile the name of the log
+    * @param numbuffers the number of pages in the ring of log buffers, at least 2
+    */
+   public LogMgr(String logfile, int numbuffers) {
+      this(logfile, numbuffers, DEFAULT_SEGMENT_BLOCKS, null);
+   }
+
+   /**
+    * Creates the manager for the specified log, which keeps the specified
+    * number of log blocks in memory, and archives the segments that are
+    * no longer needed into the specified directory.
+    * An existing log keeps the segment size recorded in its manifest.
+    * Segments that an interrupted call to {@link #archiveBefore(long)}
+    * left behind are archived first.
+    * @param logfile the name of the log
+    * @param numbuffers the number of pages in the ring of log buffers, at least 2
+    * @param segmentBlocks the number of blocks in a segment of a new log
+    * @param archiveDir the directory that receives the segments that are no longer needed,
+    * relative to the database directory, or null if they are deleted
+    */
+   public LogMgr(String logfile, int numbuffers, int segmentBlocks, String archiveDir) {
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      this.archiveDir = archiveDir;
+      FileMgr fm = SimpleDB.fileMgr();
+      manifest = new LogManifest(logfile + ".manifest", Math.max(1, segmentBlocks));
+      this.segmentBlocks = manifest.segmentBlocks();
+      int first = manifest.firstSegment();
+      for (int s = first - 1; s >= 0 && fm.exists(segmentFile(s)); s--)
+         removeSegment(s);
+      int last = first;
+      while (fm.exists(segmentFile(last + 1)))
+         last++;
+      firstblk = first * this.segmentBlocks;
+      int n = Math.max(2, numbuffers);
+      ring = new Page[n];
+      published = new AtomicInteger[n];
+      sealedEnd = new int[n];
+      for (int i = 0; i < n; i++) {
+         ring[i] = new Page();
+         published[i] = new AtomicInteger();
+      }
+      int logsize = last * this.segmentBlocks + fm.size(segmentFile(last));
+      int currentblk, currentpos;
+      if (logsize == firstblk) {
+         currentblk = firstblk;
+         currentpos = HEADER_SIZE;
+         Page pg = ring[currentblk % n];
+         pg.setInt(LAST_POS, HEADER_SIZE);
+         pg.setInt(PREV_END_POS, 0);
+         pg.write(block(currentblk));
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
-         currentpos = getLastRecordPosition() + INT_SIZE;
+         long end = validateTail(logsize);
+         currentblk = (int) (end / blocksize);
+         currentpos = (int) (end % blocksize);
+         ring[currentblk % n].read(block(currentblk));
+      }
+      published[currentblk % n].set(currentpos);
+      tail = new AtomicLong((long) currentblk * blocksize + currentpos);
+      writtenblk = currentblk - 1;
+      flushedLSN = tail.get();
+      startLSN = tail.get();
+   }
+
+   /**
+    * Checks the records of the last blocks of the log, which may have been
+    * written since the log was last forced, and discards the log from the
+    * first record that is incomplete or has a wrong checksum, or from the
+    * first block that does not follow its predecessor.
+    * The log is forced whenever the ring of log buffers fills up
+    * (see {@link #startNewBlock(long)}), and whenever it is written
+    * for a reader (see {@link #writeAll()}), so only the blocks
+    * of one ring, and the block before them, need to be checked.
+    * The first block of the log is not checked against its predecessor
+    * unless it is the first block of the first segment ever written.
+    * @param logsize the number of blocks in the log, including the archived segments
+    * @return the end of the valid records of the log
+    */
+   private long validateTail(int logsize) {
+      int first = Math.max(firstblk, logsize - ring.length - 1);
+      Page pg = ring[0];
+      int prevEnd = first == 0 ? 0 : -1;
+      if (first > firstblk) {
+         pg.read(block(first - 1));
+         prevEnd = pg.getInt(LAST_POS);
+      }
+      for (int b = first; b < logsize; b++) {
+         pg.read(block(b));
+         int end = pg.getInt(LAST_POS);
+         if (end < HEADER_SIZE || end >= blocksize || (prevEnd >= 0 && pg.getInt(PREV_END_POS) != prevEnd))
+            return cut(b - 1, prevEnd, logsize);
+         int pos = HEADER_SIZE;
+         long start = (long) b * blocksize;
+         while (pos < end) {
+            int len = recordLength(pg, start, pos, end);
+            if (len < 0)
+               break;
+            pos += len + FRAME_SIZE;
+         }
+         if (pos < end)
+            return cut(b, pos, logsize);
+         prevEnd = end;
       }
+      return (long) (logsize - 1) * blocksize + prevEnd;
+   }
+
+   /**
+    * Discards the log after the specified position of the specified block,
+    * by truncating the segment file of the block after it, deleting the
+    * later segments, and setting the end of the block's records to the position.
+    * If the block precedes the first block of the log, the log is emptied.
+    * The number of bytes discarded is kept for {@link #discardedTail()}.
+    * @return the new end of the log
+    */
+   private long cut(int blknum, int pos, int logsize) {
+      if (blknum < firstblk) {
+         blknum = firstblk;
+         pos = HEADER_SIZE;
+      }
+      Page pg = ring[0];
+      Block blk = block(blknum);
+      pg.read(blk);
+      if (blknum == 0)
+         pg.setInt(PREV_END_POS, 0);
+      pg.setInt(LAST_POS, pos);
+      pg.write(blk);
+      FileMgr fm = SimpleDB.fileMgr();
+      fm.truncate(blk.fileName(), blk.number() + 1);
+      for (int s = (logsize - 1) / segmentBlocks; s > blknum / segmentBlocks; s--)
+         fm.delete(segmentFile(s));
+      long end = (long) blknum * blocksize + pos;
+      discarded = (long) logsize * blocksize - end;
+      return end;
+   }
+
+   /**
+    * Returns the number of bytes of the corrupt tail of the log
+    * that were discarded when the log manager was created.
+    * @return the number of bytes discarded, or 0 if the log was intact
+    */
+   public long discardedTail() {
+      return discarded;
+   }
+
+   /**
+    * Returns the length of the contents of the record that starts at the
+    * specified position of a log page, if the record is complete and
+    * its checksum is right.
+    * @param pg the page holding a block of the log
+    * @param blockStart the offset of the block in the log
+    * @param pos the position of the record in the page
+    * @param end the end of the records of the page
+    * @return the length of the record's contents, or -1 if the record is corrupt
+    */
+   static int recordLength(Page pg, long blockStart, int pos, int end) {
+      if (pos + FRAME_SIZE > end)
+         return -1;
+      int len = pg.getInt(pos);
+      if (len < 0 || len > end - pos - FRAME_SIZE)
+         return -1;
+      int recend = pos + len + FRAME_SIZE;
+      if (pg.getInt(recend - INT_SIZE) != len
+            || pg.getInt(recend - 2 * INT_SIZE) != checksum(pg, pos, len, blockStart + pos))
+         return -1;
+      return len;
+   }
+
+   /**
+    * Computes the checksum of a record, which covers the record's contents
+    * and its offset in the log, so that a stale record left in a block by
+    * an earlier use of the block does not pass for a record of the log.
+    * @param pg the page holding the record
+    * @param pos the position of the record in the page
+    * @param len the length of the record's contents
+    * @param offset the offset of the record in the log
+    * @return the checksum
+    */
+   static int checksum(Page pg, int pos, int len, long offset) {
+      CRC32 crc = new CRC32();
+      for (int i = Long.SIZE - Byte.SIZE; i >= 0; i -= Byte.SIZE)
+         crc.update((int) (offset >>> i));
+      crc.update(pg.getBytes(pos + INT_SIZE, len));
+      return (int) crc.getValue();
    }
 
    /**
     * Ensures that the log records corresponding to the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
+    * The log file is forced after it is written, since the
+    * file manager does not write synchronously.
+    * If the log is already on disk up to the LSN, the method
+    * returns immediately.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public void flush(long lsn) {
+      if (lsn <= flushedLSN)
+         return;
+      synchronized (flushLock) {
+         if (lsn <= flushedLSN)
+            return;
+         long upto = write(lsn);
+         force();
+         flushedLSN = upto;
+      }
+   }
+
+   /**
+    * Returns the LSN up to which the log is on disk.
+    * @return the flushed LSN
+    */
+   public long flushedLSN() {
+      return flushedLSN;
+   }
+
+   /**
+    * Ensures that the log record corresponding to the specified LSN
+    * has been written to disk, sharing the write with other committing
+    * transactions if a log writer is running (see {@link #startLogWriter(long, int)}).
+    * Without a log writer, the method is the same as {@link #flush(int)}.
+    * The time spent in the method is recorded as the latency of a commit.
+    * @param lsn the LSN of a commit or rollback record
+    */
+   public void groupFlush(long lsn) {
+      long start = System.nanoTime();
+      LogWriter w = writer;
+      if (w == null || !w.flush(lsn)) {
+         flush(lsn);
+         recordGroup(1);
+      }
+      commitLatency.record(System.nanoTime() - start);
+   }
+
+   /**
+    * Starts a log writer thread that performs group commit.
+    * Any writer started earlier is stopped first.
+    * @param windowMicros the number of microseconds the writer waits for more
+    * commits after the first commit of a group arrives; 0 groups only the
+    * commits that arrive while the previous group is being forced
+    * @param maxBatch the largest number of commits in a group
+    */
+   public synchronized void startLogWriter(long windowMicros, int maxBatch) {
+      stopLogWriter();
+      writer = new LogWriter(this, windowMicros, maxBatch);
+      writer.start();
+   }
+
+   /**
+    * Stops the log writer, if one is running.
+    * Commits that it has already accepted are still flushed by it.
+    */
+   public synchronized void stopLogWriter() {
+      if (writer != null) {
+         writer.shutdown();
+         writer = null;
+      }
+   }
+
+   /**
+    * Returns the histogram of the time that commits and rollbacks
+    * spent waiting for their log record to be flushed.
+    * @return the commit latency histogram
+    */
+   public LatencyHistogram commitLatency() {
+      return commitLatency;
+   }
+
+   /**
+    * Returns the number of flushes performed on behalf of commits and rollbacks.
+    * @return the number of groups
+    */
+   public long groups() {
+      return groups.get();
+   }
+
+   /**
+    * Returns the number of commits and rollbacks whose log records were flushed.
+    * Divided by {@link #groups()}, this is the average group size.
+    * @return the number of grouped flushes
+    */
+   public long groupedFlushes() {
+      return groupedFlushes.get();
+   }
+
+   /**
+    * Records that a flush was performed on behalf of the specified
+    * number of commits.
+    * @param size the number of commits in the group
+    */
+   void recordGroup(int size) {
+      groups.incrementAndGet();
+      groupedFlushes.addAndGet(size);
    }
 
    /**
     * Returns an iterator for the log records,
     * which will be returned in reverse order starting with the most recent.
+    * The log is flushed first, so that the iterator
+    * sees every record.
     * @see java.lang.Iterable#iterator()
     */
-   public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+   public Iterator<BasicLogRecord> iterator() {
+      return new LogIterator(this, writeAll());
+   }
+
+   /**
+    * Returns an iterator for the log records whose LSN is at least
+    * the specified LSN, which will be returned in log order.
+    * The log is flushed first, as by {@link #iterator()};
+    * records appended after this method returns are not seen.
+    * @param lsn the LSN of the first record to return
+    * @return an iterator that reads the log forward
+    */
+   public Iterator<BasicLogRecord> forwardIterator(long lsn) {
+      return new ForwardLogIterator(this, lsn, writeAll());
+   }
+
+   /**
+    * Returns a cursor that reads the log records by their LSN.
+    * The log is flushed first, as by {@link #iterator()};
+    * records appended after this method returns cannot be read.
+    * @return a cursor for the records of the log
+    */
+   public LogCursor cursor() {
+      return new LogCursor(this, writeAll());
+   }
+
+   /**
+    * Writes all of the complete records of the log, and forces it.
+    * The log is forced as well as written, so that the blocks written
+    * since the last force never extend beyond the ring of log buffers
+    * (see {@link #validateTail(int)}).
+    * @return the LSN up to which the log has been written
+    */
+   private long writeAll() {
+      synchronized (flushLock) {
+         long upto = write(Long.MAX_VALUE);
+         force();
+         if (upto > flushedLSN)
+            flushedLSN = upto;
+         return upto;
+      }
    }
 
    /**
     * Appends a log record to the file.
     * The record contains an arbitrary array of strings and integers.
-    * The method also writes an integer to the end of each log record whose value
-    * is the offset of the corresponding integer for the previous log record.
-    * These integers allow log records to be read in reverse order.
+    * This method boxes the integers and allocates the array;
+    * the log records of the recovery manager use {@link #append(LogEncodable)} instead.
     * @param rec the list of values
-    * @return the LSN of the final value
+    * @return the LSN of the record
     */
-   public synchronized int append(Object[] rec) {
-      int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
-      for (Object obj : rec)
-         recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
-      }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
+   public long append(final Object[] rec) {
+      return append(new LogEncodable() {
+         public int encodedSize() {
+            int size = 0;
+            for (Object obj : rec)
+               size += size(obj);
+            return size;
+         }
+
+         public void encode(Page page, int pos) {
+            for (Object obj : rec) {
+               if (obj instanceof String)
+                  page.setString(pos, (String)obj);
+               else
+                  page.setInt(pos, (Integer)obj);
+               pos += size(obj);
+            }
+         }
+      });
    }
 
    /**
-    * Adds the specified value to the page at the position denoted by
-    * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * Appends a log record to the file.
+    * The space for the record is reserved with a compare-and-set on the
+    * end of the log, and the record encodes itself into that space,
+    * between its length and its checksum.
+    * The length is written again at the end of the record,
+    * so that log records can also be read in reverse order.
+    * If the record does not fit in the current block, a new block is started.
+    * A record must fit in a block of its own, since records do not span blocks.
+    * @param rec the log record
+    * @return the LSN of the record
+    * @throws IllegalArgumentException if the record is too large for a log block
     */
-   private void appendVal(Object val) {
-      if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
-      else
-         mypage.setInt(currentpos, (Integer)val);
-      currentpos += size(val);
+   public long append(LogEncodable rec) {
+      int len = rec.encodedSize();
+      int recsize = len + FRAME_SIZE;
+      if (HEADER_SIZE + recsize >= blocksize)
+         throw new IllegalArgumentException("log record of " + len
+               + " bytes does not fit in a log block of " + blocksize + " bytes");
+      while (true) {
+         long t = tail.get();
+         int blknum = (int) (t / blocksize);
+         int pos = (int) (t % blocksize);
+         if (pos + recsize >= blocksize) { // the log record doesn't fit,
+            startNewBlock(t);               // so move to the next block.
+            continue;
+         }
+         if (!tail.compareAndSet(t, t + recsize))
+            continue;
+         Page page = ring[blknum % ring.length];
+         int end = pos + recsize;
+         page.setInt(pos, len);
+         rec.encode(page, pos + INT_SIZE);
+         page.setInt(end - 2 * INT_SIZE, checksum(page, pos, len, t));
+         page.setInt(end - INT_SIZE, len);
+         publish(blknum, pos, end);
+         return t + recsize;
+      }
    }
 
    /**
@@ -124,49 +566,247 @@ public class LogMgr implements Iterable<BasicLogRecord> {
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
-    * @return the LSN of the most recent log record
+    * Marks the record between the specified positions of the block as complete,
+    * once the records reserved before it are complete.
     */
-   private int currentLSN() {
-      return currentblk.number();
+   private void publish(int blknum, int start, int end) {
+      AtomicInteger p = published[blknum % ring.length];
+      while (p.get() != start)
+         Thread.yield();
+      p.set(end);
    }
 
    /**
-    * Writes the current page to the log file.
+    * Waits until the records of the block are complete up to the specified position.
+    * @return the end of the complete records, which may be beyond the position
     */
-   private void flush() {
-      mypage.write(currentblk);
+   private int awaitPublished(int blknum, int pos) {
+      AtomicInteger p = published[blknum % ring.length];
+      int end;
+      while ((end = p.get()) < pos)
+         Thread.yield();
+      return end;
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Ends the block containing the specified end of the log, and starts the next block
+    * in the next page of the ring. If that page still holds a block that has not been
+    * written, the full blocks are written and forced first, which bounds the part of
+    * the log that may be torn by a crash to the blocks of one ring.
+    * Nothing happens if the end of the log has moved meanwhile.
+    * @param t the end of the log, which lies in a block too full for a record
     */
-   private void appendNewBlock() {
-      setLastRecordPosition(0);
-      currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   private void startNewBlock(long t) {
+      int blknum = (int) (t / blocksize);
+      synchronized (this) {
+         if (tail.get() != t)
+            return;
+         if (blknum + 1 - ring.length <= writtenblk) {
+            int next = (blknum + 1) % ring.length;
+            ring[next].setInt(PREV_END_POS, (int) (t % blocksize));
+            published[next].set(HEADER_SIZE);
+            sealedEnd[blknum % ring.length] = (int) (t % blocksize);
+            tail.compareAndSet(t, (long) (blknum + 1) * blocksize + HEADER_SIZE);
+            return;
+         }
+      }
+      // the next page of the ring still holds an unwritten block
+      synchronized (flushLock) {
+         long upto = write((long) blknum * blocksize);
+         force();
+         if (upto > flushedLSN)
+            flushedLSN = upto;
+      }
    }
 
    /**
-    * Sets up a circular chain of pointers to the records in the page.
-    * There is an integer added to the end of each log record
-    * whose value is the offset of the previous log record.
-    * The first four bytes of the page contain an integer whose value
-    * is the offset of the integer for the last log record in the page.
+    * Writes the log up to the specified LSN, without forcing it:
+    * first the full blocks, in block order, once their records are complete,
+    * and then, if the LSN is in the current block, the complete records of the current block.
+    * The header of each page is set to the end of its complete records just before it is written.
+    * The caller must hold the flush lock.
+    * @param lsn the LSN up to which the log is written
+    * @return the LSN up to which the log has been written
     */
-   private void finalizeRecord() {
-      mypage.setInt(currentpos, getLastRecordPosition());
-      setLastRecordPosition(currentpos);
-      currentpos += INT_SIZE;
+   private long write(long lsn) {
+      long t = tail.get();
+      int currentblk = (int) (t / blocksize);
+      int first = writtenblk + 1;
+      int last = currentblk - 1;
+      if (first <= last) {
+         Page[] pages = new Page[last - first + 1];
+         for (int b = first; b <= last; b++) {
+            int end = sealedEnd[b % ring.length];
+            awaitPublished(b, end);
+            pages[b - first] = ring[b % ring.length];
+            setLastRecordPosition(pages[b - first], end);
+         }
+         writeBlocks(first, pages);
+         writtenblk = last;
+      }
+      long start = (long) currentblk * blocksize;
+      if (lsn <= start)
+         return start;
+      int end = awaitPublished(currentblk, (int) (t % blocksize));
+      Page pg = ring[currentblk % ring.length];
+      setLastRecordPosition(pg, end);
+      pg.write(block(currentblk));
+      markWritten(currentblk);
+      return start + end;
+   }
+
+   /**
+    * Writes the pages to consecutive blocks of the log,
+    * with a single gathering write for the blocks of each segment.
+    */
+   private void writeBlocks(int first, Page[] pages) {
+      int i = 0;
+      while (i < pages.length) {
+         int blknum = first + i;
+         int n = Math.min(pages.length - i, segmentBlocks - blknum % segmentBlocks);
+         Page.write(block(blknum), Arrays.copyOfRange(pages, i, i + n));
+         markWritten(blknum);
+         markWritten(blknum + n - 1);
+         i += n;
+      }
+   }
+
+   /**
+    * Records that the segment of the specified block has been written
+    * since the log was last forced. The caller must hold the flush lock.
+    */
+   private void markWritten(int blknum) {
+      int s = blknum / segmentBlocks;
+      unforcedLow = Math.min(unforcedLow, s);
+      unforcedHigh = Math.max(unforcedHigh, s);
    }
 
-   private int getLastRecordPosition() {
-      return mypage.getInt(LAST_POS);
+   /**
+    * Forces the segments written since the log was last forced.
+    * The caller must hold the flush lock.
+    */
+   private void force() {
+      for (int s = unforcedLow; s <= unforcedHigh; s++)
+         SimpleDB.fileMgr().force(segmentFile(s));
+      unforcedLow = Integer.MAX_VALUE;
+      unforcedHigh = -1;
+   }
+
+   /**
+    * Moves the segments of the log before the segment holding the specified LSN
+    * to the archive directory, or deletes them if there is no archive directory.
+    * The manifest is updated first, so that a crash in the middle leaves
+    * segments that are archived when the log manager is next created.
+    * The recovery manager calls this method after each checkpoint with the LSN
+    * before which recovery no longer needs the log; no iterator may read
+    * the log before that LSN afterwards.
+    * Nothing happens if the LSN is not yet on disk.
+    * @param lsn the LSN before which the log is no longer needed
+    */
+   public void archiveBefore(long lsn) {
+      if (lsn > flushedLSN)
+         return;
+      int segment = (int) (lsn / blocksize / segmentBlocks);
+      synchronized (manifest) {
+         int first = manifest.firstSegment();
+         if (segment <= first)
+            return;
+         manifest.setFirstSegment(segment);
+         firstblk = segment * segmentBlocks;
+         for (int s = first; s < segment; s++)
+            removeSegment(s);
+      }
    }
 
-   private void setLastRecordPosition(int pos) {
-      mypage.setInt(LAST_POS, pos);
+   /**
+    * Archives or deletes the file of the specified segment.
+    */
+   private void removeSegment(int segment) {
+      if (archiveDir == null)
+         SimpleDB.fileMgr().delete(segmentFile(segment));
+      else
+         SimpleDB.fileMgr().archive(segmentFile(segment), archiveDir);
+   }
+
+   /**
+    * Returns the name of the file of the specified segment.
+    */
+   private String segmentFile(int segment) {
+      return logfile + "." + segment;
+   }
+
+   /**
+    * Returns the specified block of the log, within the file of its segment.
+    * @param blknum the number of the block in the log
+    * @return the block of the segment file
+    */
+   Block block(int blknum) {
+      return new Block(segmentFile(blknum / segmentBlocks), blknum % segmentBlocks);
+   }
+
+   /**
+    * Returns the number of the first block of the log that has not been archived.
+    * @return the first block of the log
+    */
+   int firstBlock() {
+      return firstblk;
+   }
+
+   /**
+    * Returns the number of blocks in a segment of the log.
+    * @return the segment size in blocks
+    */
+   int segmentBlocks() {
+      return segmentBlocks;
+   }
+
+   /**
+    * Returns the offset in the log at which the next record will be appended.
+    * @return the end of the log
+    */
+   public long endLSN() {
+      return tail.get();
+   }
+
+   /**
+    * Returns the number of bytes by which the log has grown since the
+    * log manager was created, including the unused ends of full blocks.
+    * @return the number of bytes appended
+    */
+   public long bytesAppended() {
+      return tail.get() - startLSN;
+   }
+
+   /**
+    * Returns the number of the first segment of the log;
+    * the segments before it have been archived or deleted.
+    * @return the first segment
+    */
+   public int firstSegment() {
+      return firstblk / segmentBlocks;
+   }
+
+   /**
+    * Returns the number of segments in the log, from the first segment
+    * up to the segment holding the end of the log.
+    * @return the number of retained segments
+    */
+   public int retainedSegments() {
+      return (int) (tail.get() / blocksize / segmentBlocks) - firstSegment() + 1;
+   }
+
+   /**
+    * Returns the size of a segment of the log in bytes.
+    * @return the segment size
+    */
+   public long segmentSize() {
+      return (long) segmentBlocks * blocksize;
+   }
+
+   /**
+    * Sets the header of a log page to the specified end of its records.
+    */
+   private void setLastRecordPosition(Page pg, int end) {
+      pg.setInt(LAST_POS, end);
    }
 }
@@ -0,0 +1,56 @@
+package simpledb.log;
+
+/**
+ * Exposes the growth and the segments of the log of a log manager
+ * as a {@link LogMXBean}.
+ */
+public class LogMonitor implements LogMXBean {
+   private LogMgr logMgr;
+   private long lastBytes;
+   private long lastNanos = System.nanoTime();
+
+   public LogMonitor(LogMgr logMgr) {
+      this.logMgr = logMgr;
+      this.lastBytes = logMgr.bytesAppended();
+   }
+
+   @Override
+   public long getEndLSN() {
+      return logMgr.endLSN();
+   }
+
+   @Override
+   public long getFlushedLSN() {
+      return logMgr.flushedLSN();
+   }
+
+   @Override
+   public long getBytesAppended() {
+      return logMgr.bytesAppended();
+   }
+
+   @Override
+   public synchronized double getBytesPerSecond() {
+      long bytes = logMgr.bytesAppended();
+      long now = System.nanoTime();
+      double rate = now == lastNanos ? 0 : (bytes - lastBytes) * 1e9 / (now - lastNanos);
+      lastBytes = bytes;
+      lastNanos = now;
+      return rate;
+   }
+
+   @Override
+   public long getSegmentSize() {
+      return logMgr.segmentSize();
+   }
+
+   @Override
+   public int getFirstSegment() {
+      return logMgr.firstSegment();
+   }
+
+   @Override
+   public int getRetainedSegments() {
+      return logMgr.retainedSegments();
+   }
+}
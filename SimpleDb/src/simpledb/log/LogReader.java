@@ -0,0 +1,62 @@
+package simpledb.log;
+
+import simpledb.file.*;
+
+/**
+ * Reads the blocks of the log for a log iterator in chunks of
+ * consecutive blocks, each with a single scattering read, so that
+ * an iterator reads the log sequentially and ahead of its records.
+ * A chunk does not extend beyond the segment of the block that is
+ * asked for, so that it never reaches into an archived segment.
+ * The pages of a chunk are reused for the next chunk, so a record
+ * returned by an iterator can be read only until the iterator moves on.
+ */
+class LogReader {
+   /**
+    * The number of blocks read at once.
+    */
+   static final int READ_AHEAD = 16;
+
+   private LogMgr logMgr;
+   private int lastblk;
+   private Page[] pages = new Page[READ_AHEAD];
+   private int first = 0, count = 0;
+
+   /**
+    * Creates a reader for the blocks of the specified log
+    * up to the specified block.
+    * @param logMgr the log manager
+    * @param lastblk the number of the last block that may be read
+    */
+   LogReader(LogMgr logMgr, int lastblk) {
+      this.logMgr = logMgr;
+      this.lastblk = lastblk;
+   }
+
+   /**
+    * Returns the page holding the specified block.
+    * If the block is not in the current chunk, the reader reads the chunk
+    * that starts with the block when reading forward,
+    * or that ends with it when reading backward.
+    * @param blknum the number of a block of the log
+    * @param forward whether the log is read forward
+    * @return the page holding the block
+    */
+   Page page(int blknum, boolean forward) {
+      if (blknum >= first && blknum < first + count)
+         return pages[blknum - first];
+      int segStart = blknum - blknum % logMgr.segmentBlocks();
+      int segEnd = segStart + logMgr.segmentBlocks() - 1;
+      first = forward ? blknum : Math.max(segStart, blknum - READ_AHEAD + 1);
+      int last = forward ? Math.min(Math.min(lastblk, segEnd), blknum + READ_AHEAD - 1) : blknum;
+      count = last - first + 1;
+      Page[] chunk = new Page[count];
+      for (int i = 0; i < count; i++) {
+         if (pages[i] == null)
+            pages[i] = new Page();
+         chunk[i] = pages[i];
+      }
+      Page.read(logMgr.block(first), chunk);
+      return pages[blknum - first];
+   }
+}
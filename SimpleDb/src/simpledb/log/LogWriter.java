@@ -0,0 +1,142 @@
+package simpledb.log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The background thread of the log manager that performs group commit.
+ * A committing transaction hands the LSN of its commit record to the writer
+ * and parks; the writer collects the requests that arrive while it is
+ * forcing the log, or within a short window after the first of them,
+ * flushes the log once up to the highest of their LSNs,
+ * and then wakes up every transaction of the group.
+ * Thus concurrent commits share a single write and force of the log.
+ */
+class LogWriter extends Thread {
+   private LogMgr logMgr;
+   private long windowNanos;
+   private int maxBatch;
+   private ArrayDeque<Request> queue = new ArrayDeque<Request>();
+   private boolean stopped = false;
+
+   /**
+    * Creates a log writer for the specified log manager.
+    * @param logMgr the log manager whose log is flushed
+    * @param windowMicros the number of microseconds to wait for more requests
+    * after the first request of a group arrives
+    * @param maxBatch the largest number of requests in a group
+    */
+   LogWriter(LogMgr logMgr, long windowMicros, int maxBatch) {
+      super("simpledb-log-writer");
+      this.logMgr = logMgr;
+      this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+      this.maxBatch = Math.max(1, maxBatch);
+      setDaemon(true);
+   }
+
+   /**
+    * Waits until the log has been flushed up to the specified LSN
+    * by the writer thread.
+    * Returns false, without waiting, if the writer has been stopped.
+    * @param lsn the LSN of a log record
+    * @return true if the writer flushed the log
+    */
+   boolean flush(long lsn) {
+      Request r = new Request(lsn);
+      synchronized (queue) {
+         if (stopped)
+            return false;
+         queue.add(r);
+         queue.notify();
+      }
+      while (!r.done)
+         LockSupport.park(this);
+      if (r.failure != null)
+         throw r.failure;
+      return true;
+   }
+
+   @Override
+   public void run() {
+      List<Request> group;
+      while ((group = nextGroup()) != null) {
+         if (group.isEmpty())
+            continue;
+         long maxlsn = -1;
+         for (Request r : group)
+            maxlsn = Math.max(maxlsn, r.lsn);
+         RuntimeException failure = null;
+         try {
+            logMgr.flush(maxlsn);
+         }
+         catch (RuntimeException e) {
+            failure = e;
+         }
+         logMgr.recordGroup(group.size());
+         for (Request r : group) {
+            r.failure = failure;
+            r.done = true;
+            LockSupport.unpark(r.thread);
+         }
+      }
+   }
+
+   /**
+    * Waits for the next group of requests.
+    * Once a request has arrived, the writer waits until the window
+    * has passed or the group is full, whichever comes first.
+    * @return the requests of the group, or null if the writer has been stopped
+    * and no requests remain
+    */
+   private List<Request> nextGroup() {
+      synchronized (queue) {
+         try {
+            while (queue.isEmpty() && !stopped)
+               queue.wait();
+            long deadline = System.nanoTime() + windowNanos;
+            long left = windowNanos;
+            while (queue.size() < maxBatch && !stopped && left > 0) {
+               TimeUnit.NANOSECONDS.timedWait(queue, left);
+               left = deadline - System.nanoTime();
+            }
+         }
+         catch (InterruptedException e) {
+            // flush what has arrived
+         }
+         if (queue.isEmpty())
+            return stopped ? null : new ArrayList<Request>();
+         List<Request> group = new ArrayList<Request>();
+         while (!queue.isEmpty() && group.size() < maxBatch)
+            group.add(queue.poll());
+         return group;
+      }
+   }
+
+   /**
+    * Stops the writer once the requests already submitted have been flushed.
+    * Later requests are refused, so that their callers flush the log themselves.
+    */
+   void shutdown() {
+      synchronized (queue) {
+         stopped = true;
+         queue.notify();
+      }
+   }
+
+   /**
+    * A transaction waiting for the log to be flushed.
+    */
+   private static class Request {
+      final long lsn;
+      final Thread thread = Thread.currentThread();
+      volatile boolean done = false;
+      volatile RuntimeException failure = null;
+
+      Request(long lsn) {
+         this.lsn = lsn;
+      }
+   }
+}
@@ -11,6 +11,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
    private Transaction tx;
+   private boolean readOnly = false;
    
    /**
     * Creates a remote connection
@@ -38,6 +39,26 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
       tx.commit();
    }
    
+   /**
+    * Sets whether the transactions of the connection are read-only,
+    * and read a snapshot of the database without locks.
+    * The current transaction is committed, and a new one
+    * begins in the new mode.
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      this.readOnly = readOnly;
+      commit();
+   }
+   
+   /**
+    * Returns whether the transactions of the connection are read-only.
+    * @see simpledb.remote.RemoteConnection#isReadOnly()
+    */
+   public boolean isReadOnly() throws RemoteException {
+      return readOnly;
+   }
+   
 // The following methods are used by the server-side classes.
    
    /**
@@ -55,7 +76,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void commit() {
       tx.commit();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
    
    /**
@@ -64,7 +85,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void rollback() {
       tx.rollback();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
 }
 
@@ -33,5 +33,29 @@ public class SimpleConnection extends ConnectionAdapter {
          throw new SQLException(e);
       }
    }
+   
+   /**
+    * Puts the connection in read-only mode, in which its
+    * transactions read a snapshot of the database without locks.
+    * The current transaction is committed, and the next one
+    * begins in the new mode.
+    */
+   public void setReadOnly(boolean readOnly) throws SQLException {
+      try {
+         rconn.setReadOnly(readOnly);
+      }
+      catch(Exception e) {
+         throw new SQLException(e);
+      }
+   }
+   
+   public boolean isReadOnly() throws SQLException {
+      try {
+         return rconn.isReadOnly();
+      }
+      catch(Exception e) {
+         throw new SQLException(e);
+      }
+   }
 }
 
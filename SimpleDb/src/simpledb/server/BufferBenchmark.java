@@ -0,0 +1,66 @@
+package simpledb.server;
+
+import java.util.Random;
+
+import simpledb.buffer.*;
+import simpledb.buffer.BufferManagerFactory.BufferManagerType;
+import simpledb.file.*;
+
+/**
+ * A small driver that compares the hit ratios of the buffer replacement policies on a workload
+ * that mixes point lookups of a small hot set of blocks with sequential scans of a large file, as
+ * in a transaction workload that runs alongside reports. Each round pins random blocks of the hot
+ * set and then scans the whole file once; a policy that keeps the hot set in the pool across the
+ * scans has a high hit ratio on the lookups.
+ * 
+ * The arguments are the number of buffers, the number of blocks of the file, the number of hot
+ * blocks, and the number of rounds; each has a default. The database directory
+ * <code>bufferbench</code> is created in the home directory if it does not exist.
+ */
+public class BufferBenchmark {
+  private static final String FILE = "bufferbench.tbl";
+  private static final int LOOKUPS_PER_ROUND = 1000;
+
+  public static void main(String args[]) throws Exception {
+    int numbuffs = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int fileblocks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int hotblocks = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    SimpleDB.initFileAndLogMgr("bufferbench");
+    createFile(numbuffs, fileblocks);
+
+    System.out.println("buffers=" + numbuffs + " blocks=" + fileblocks + " hot=" + hotblocks
+        + " rounds=" + rounds);
+    for (BufferManagerType type : new BufferManagerType[] {BufferManagerType.LRU,
+        BufferManagerType.TWO_Q}) {
+      BufferMgr bm = new BufferMgr(numbuffs, type);
+      Random rand = new Random(42);
+      long lookups = 0, lookupHits = 0;
+      for (int r = 0; r < rounds; r++) {
+        BufferPoolStats before = bm.snapshot();
+        for (int i = 0; i < LOOKUPS_PER_ROUND; i++)
+          bm.unpin(bm.pin(new Block(FILE, rand.nextInt(hotblocks))));
+        BufferPoolStats after = bm.snapshot();
+        lookups += after.fetches() - before.fetches();
+        lookupHits += after.hits() - before.hits();
+        for (int b = 0; b < fileblocks; b++)
+          bm.unpin(bm.pin(new Block(FILE, b)));
+      }
+      BufferPoolStats stats = bm.snapshot();
+      System.out.printf("%-6s hit ratio: overall %.3f, point lookups %.3f%n", type,
+          stats.hitRatio(), (double) lookupHits / lookups);
+    }
+  }
+
+  /**
+   * Appends blocks to the file until it has the specified size.
+   */
+  private static void createFile(int numbuffs, int fileblocks) {
+    BufferMgr bm = new BufferMgr(numbuffs);
+    PageFormatter fmtr = new PageFormatter() {
+      public void format(Page p) {}
+    };
+    for (int b = SimpleDB.fileMgr().size(FILE); b < fileblocks; b++)
+      bm.unpin(bm.pinNew(FILE, fmtr));
+  }
+}
@@ -0,0 +1,122 @@
+package simpledb.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, which can be updated
+ * concurrently without locking or allocation.
+ * Durations are recorded in nanoseconds and counted
+ * in buckets whose bounds are powers of two
+ * microseconds: bucket 0 counts durations below 1 microsecond,
+ * and bucket i counts durations of at least 2^(i-1)
+ * and less than 2^i microseconds.
+ * The last bucket also counts all longer durations.
+ */
+public class LatencyHistogram {
+   /**
+    * The number of buckets. The last bounded bucket
+    * ends at 2^30 microseconds, about 18 minutes.
+    */
+   public static final int BUCKETS = 32;
+
+   private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private AtomicLong count = new AtomicLong();
+   private AtomicLong totalNanos = new AtomicLong();
+   private AtomicLong maxNanos = new AtomicLong();
+
+   /**
+    * Records a single duration.
+    * @param nanos the duration, in nanoseconds
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      counts.incrementAndGet(bucketFor(nanos));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+         max = maxNanos.get();
+   }
+
+   /**
+    * Returns the number of recorded durations.
+    * @return the number of recorded durations
+    */
+   public long count() {
+      return count.get();
+   }
+
+   /**
+    * Returns the sum of the recorded durations.
+    * @return the total duration, in nanoseconds
+    */
+   public long totalNanos() {
+      return totalNanos.get();
+   }
+
+   /**
+    * Returns the longest recorded duration.
+    * @return the longest duration, in nanoseconds
+    */
+   public long maxNanos() {
+      return maxNanos.get();
+   }
+
+   /**
+    * Returns a copy of the bucket counts.
+    * Buckets are read one at a time, so a copy taken while
+    * durations are being recorded may be slightly inconsistent
+    * with {@link #count()}.
+    * @return the number of durations in each bucket
+    */
+   public long[] counts() {
+      long[] result = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++)
+         result[i] = counts.get(i);
+      return result;
+   }
+
+   /**
+    * Returns the exclusive upper bound of each bucket, in microseconds.
+    * The bound of the last bucket is Long.MAX_VALUE.
+    * @return the upper bound of each bucket
+    */
+   public static long[] upperBoundsMicros() {
+      long[] result = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS - 1; i++)
+         result[i] = 1L << i;
+      result[BUCKETS - 1] = Long.MAX_VALUE;
+      return result;
+   }
+
+   /**
+    * Returns an estimate of the specified percentile,
+    * namely the upper bound of the bucket containing it.
+    * @param counts bucket counts, as returned by {@link #counts()}
+    * @param percentile the percentile, between 0 and 100
+    * @return the estimated percentile, in microseconds, or 0 if there are no durations
+    */
+   public static long percentileMicros(long[] counts, double percentile) {
+      long total = 0;
+      for (long c : counts)
+         total += c;
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(total * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+         seen += counts[i];
+         if (seen >= rank && seen > 0)
+            return i < BUCKETS - 1 ? 1L << i : Long.MAX_VALUE;
+      }
+      return Long.MAX_VALUE;
+   }
+
+   private static int bucketFor(long nanos) {
+      long micros = nanos / 1000;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      return Math.min(bucket, BUCKETS - 1);
+   }
+}
@@ -1,9 +1,18 @@
 package simpledb.server;
 
+import java.lang.management.ManagementFactory;
+import javax.management.*;
 import simpledb.file.FileMgr;
+import simpledb.file.MappedFileMgr;
+import simpledb.file.Page;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.concurrency.LockMonitor;
+import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.log.GroupCommitMonitor;
 import simpledb.log.LogMgr;
+import simpledb.log.LogMonitor;
 import simpledb.metadata.MetadataMgr;
 import simpledb.planner.*;
 import simpledb.opt.HeuristicQueryPlanner;
@@ -24,7 +33,60 @@ import simpledb.index.planner.IndexUpdatePlanner;
  */
 public class SimpleDB {
    public static int BUFFER_SIZE = 8;
+   /** The block size of a database that is created; an existing database keeps its own. */
+   public static int BLOCK_SIZE = Page.DEFAULT_BLOCK_SIZE;
+   public static BufferManagerFactory.BufferManagerType BUFFER_MGR_TYPE =
+         BufferManagerFactory.BufferManagerType.LRU;
+   /** The name of the log, after which its segment files and manifest are named. */
    public static String LOG_FILE = "simpledb.log";
+   /** The number of log blocks that the log manager keeps in memory. */
+   public static int LOG_BUFFERS = LogMgr.DEFAULT_LOG_BUFFERS;
+   /** The number of blocks in a segment of a new log; an existing log keeps its own. */
+   public static int LOG_SEGMENT_BLOCKS = LogMgr.DEFAULT_SEGMENT_BLOCKS;
+   /**
+    * The directory, relative to the database directory, into which the log segments
+    * that recovery no longer needs are moved; null deletes them instead.
+    */
+   public static String LOG_ARCHIVE_DIR = null;
+   /** Whether the data files are mapped into memory (see {@link MappedFileMgr}). */
+   public static boolean MEMORY_MAPPED = false;
+   /** The fraction of the buffer pool that the page cleaner keeps clean; 0 disables the cleaner. */
+   public static double PAGE_CLEANER_RATIO = 0.25;
+   /** The number of milliseconds the page cleaner sleeps when it finds nothing to write. */
+   public static long PAGE_CLEANER_INTERVAL = 100;
+   /**
+    * The number of microseconds the log writer waits for more commits after the first
+    * commit of a group; 0 groups only the commits that arrive during the previous force.
+    */
+   public static long GROUP_COMMIT_WINDOW = 0;
+   /** The largest number of commits that share a log force; 1 disables group commit. */
+   public static int GROUP_COMMIT_MAX_BATCH = 64;
+   /** The number of milliseconds between nonquiescent checkpoints; 0 disables them. */
+   public static long CHECKPOINT_INTERVAL = 60000;
+   /**
+    * The largest number of updates that a transaction keeps in memory for its rollback;
+    * a transaction that makes more reads them back from the log instead.
+    */
+   public static int UNDO_CACHE_RECORDS = 64;
+   /** The number of threads that redo and undo updates during restart recovery. */
+   public static int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+   /** The number of independent partitions of the lock table. */
+   public static int LOCK_PARTITIONS = 64;
+   /**
+    * The number of block locks that a transaction may hold in a file before it locks
+    * the whole file instead; {@link Integer#MAX_VALUE} disables the escalation.
+    */
+   public static int LOCK_ESCALATION_THRESHOLD = 1000;
+   /**
+    * Whether transactions keep the former versions of the blocks they modify, so that
+    * read-only transactions can read snapshots without locks; it must be set before
+    * {@link #init(String)}. When false, read-only transactions lock what they read.
+    * While no snapshot is active, writers copy no blocks; the versions a new
+    * snapshot needs are rebuilt from their log records.
+    */
+   public static boolean MULTI_VERSION = true;
+   /** The number of milliseconds between collections of the block versions that no snapshot sees. */
+   public static long VERSION_COLLECT_INTERVAL = 1000;
    
    private static FileMgr     fm;
    private static BufferMgr   bm;
@@ -37,6 +99,8 @@ public class SimpleDB {
     * @param dirname the name of the database directory
     */
    public static void init(String dirname) {
+      RecoveryMgr.stopCheckpointer();
+      ConcurrencyMgr.stopVersionCollector();
       initFileLogAndBufferMgr(dirname);
       Transaction tx = new Transaction();
       boolean isnew = fm.isNew();
@@ -44,10 +108,62 @@ public class SimpleDB {
          System.out.println("creating new database");
       else {
          System.out.println("recovering existing database");
+         if (logm.discardedTail() > 0)
+            System.out.println("discarded the corrupt tail of the log after offset "
+                               + logm.endLSN() + " (" + logm.discardedTail() + " bytes)");
          tx.recover();
+         System.out.println(RecoveryMgr.lastRecovery());
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      if (CHECKPOINT_INTERVAL > 0)
+         RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL);
+      if (MULTI_VERSION)
+         ConcurrencyMgr.startVersionCollector(VERSION_COLLECT_INTERVAL);
+   }
+   
+   /**
+    * Initializes the system with a buffer pool
+    * of the specified size.
+    * @param dirname the name of the database directory
+    * @param poolsize the number of buffers in the buffer pool
+    */
+   public static void init(String dirname, int poolsize) {
+      init(dirname, poolsize, BLOCK_SIZE);
+   }
+   
+   /**
+    * Initializes the system with a buffer pool
+    * of the specified size.
+    * If the database does not exist, it is created with
+    * the specified block size; otherwise, the database keeps
+    * the block size it was created with.
+    * @param dirname the name of the database directory
+    * @param poolsize the number of buffers in the buffer pool
+    * @param blocksize the block size of a new database, a power of two
+    * between {@link Page#MIN_BLOCK_SIZE} and {@link Page#MAX_BLOCK_SIZE}
+    */
+   public static void init(String dirname, int poolsize, int blocksize) {
+      BUFFER_SIZE = poolsize;
+      BLOCK_SIZE = blocksize;
+      init(dirname);
+   }
+   
+   /**
+    * Initializes the system with a buffer pool
+    * of the specified size, and chooses whether the
+    * data files are read through their channels or
+    * mapped into memory.
+    * Mapping suits a database whose tables are read
+    * much more often than they are written.
+    * @param dirname the name of the database directory
+    * @param poolsize the number of buffers in the buffer pool
+    * @param blocksize the block size of a new database
+    * @param mapped true if the data files should be mapped into memory
+    */
+   public static void init(String dirname, int poolsize, int blocksize, boolean mapped) {
+      MEMORY_MAPPED = mapped;
+      init(dirname, poolsize, blocksize);
    }
    
    // The following initialization methods are useful for 
@@ -59,7 +175,10 @@ public class SimpleDB {
     * @param dirname the name of the database directory
     */
    public static void initFileMgr(String dirname) {
-      fm = new FileMgr(dirname);
+      if (MEMORY_MAPPED)
+         fm = new MappedFileMgr(dirname, BLOCK_SIZE, LOG_FILE);
+      else
+         fm = new FileMgr(dirname, BLOCK_SIZE);
    }
    
    /**
@@ -68,7 +187,13 @@ public class SimpleDB {
     */
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
-      logm = new LogMgr(LOG_FILE);
+      if (logm != null)
+         logm.stopLogWriter();
+      logm = new LogMgr(LOG_FILE, LOG_BUFFERS, LOG_SEGMENT_BLOCKS, LOG_ARCHIVE_DIR);
+      if (GROUP_COMMIT_MAX_BATCH > 1)
+         logm.startLogWriter(GROUP_COMMIT_WINDOW, GROUP_COMMIT_MAX_BATCH);
+      registerMBean("simpledb:type=GroupCommit", new GroupCommitMonitor(logm));
+      registerMBean("simpledb:type=Log", new LogMonitor(logm));
    }
    
    /**
@@ -77,7 +202,13 @@ public class SimpleDB {
     */
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      if (bm != null)
+         bm.stopPageCleaner();
+      bm = new BufferMgr(BUFFER_SIZE, BUFFER_MGR_TYPE);
+      if (PAGE_CLEANER_RATIO > 0)
+         bm.startPageCleaner(PAGE_CLEANER_RATIO, PAGE_CLEANER_INTERVAL);
+      registerMBean("simpledb:type=BufferPool", new BufferPoolMonitor(bm));
+      registerMBean("simpledb:type=Locks", new LockMonitor());
    }
    
    /**
@@ -90,6 +221,26 @@ public class SimpleDB {
       mdm = new MetadataMgr(isnew, tx);
    }
    
+   /**
+    * Registers the specified object with the platform
+    * MBean server, replacing any object registered
+    * under the same name by an earlier initialization.
+    * @param name the object name of the MBean
+    * @param mbean the MBean
+    */
+   public static void registerMBean(String name, Object mbean) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName oname = new ObjectName(name);
+         if (server.isRegistered(oname))
+            server.unregisterMBean(oname);
+         server.registerMBean(mbean, oname);
+      }
+      catch (JMException e) {
+         throw new RuntimeException("cannot register MBean " + name);
+      }
+   }
+   
    public static FileMgr     fileMgr()   { return fm; }
    public static BufferMgr   bufferMgr() { return bm; }
    public static LogMgr      logMgr()    { return logm; }
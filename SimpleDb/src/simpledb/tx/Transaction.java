@@ -4,12 +4,18 @@ import simpledb.server.SimpleDB;
 import simpledb.file.Block;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.tx.concurrency.BlockVersion;
 import simpledb.tx.concurrency.ConcurrencyMgr;
+import java.util.*;
 
 /**
  * Provides transaction management for clients,
  * ensuring that all transactions are serializable, recoverable,
  * and in general satisfy the ACID properties.
+ * A read-only transaction reads a snapshot of the database as of
+ * its beginning, without locking the blocks it reads, and may
+ * modify only temporary tables; it writes no log records, so that
+ * it begins and commits without involving the log manager.
  * @author Edward Sciore
  */
 public class Transaction {
@@ -19,6 +25,7 @@ public class Transaction {
    private ConcurrencyMgr concurMgr;
    private int txnum;
    private BufferList myBuffers = new BufferList();
+   private Set<Block> appended = new HashSet<Block>();
    
    /**
     * Creates a new transaction and its associated 
@@ -33,41 +40,63 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
+      this(false);
+   }
+   
+   /**
+    * Creates a new transaction, which may be read-only.
+    * @param readOnly true if the transaction reads a snapshot
+    * and modifies only temporary tables
+    * @see #Transaction()
+    */
+   public Transaction(boolean readOnly) {
       txnum       = nextTxNumber();
-      recoveryMgr = new RecoveryMgr(txnum);
-      concurMgr   = new ConcurrencyMgr();
+      recoveryMgr = new RecoveryMgr(txnum, readOnly);
+      concurMgr   = new ConcurrencyMgr(txnum, readOnly, recoveryMgr);
    }
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
+    * Writes and flushes a commit record to the log,
+    * unless the transaction is read-only;
+    * the modified buffers are written later,
+    * since recovery can redo their updates from the log.
+    * Then makes the modifications visible to new snapshots,
     * releases all locks, and unpins any pinned buffers.
     */
    public void commit() {
       recoveryMgr.commit();
-      concurMgr.release();
+      concurMgr.commit();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " committed");
    }
    
    /**
     * Rolls back the current transaction.
-    * Undoes any modified values,
-    * flushes those buffers,
-    * writes and flushes a rollback record to the log,
+    * Undoes any modified values, logging a compensation
+    * record for each, writes and flushes a rollback record to the log,
     * releases all locks, and unpins any pinned buffers.
     */
    public void rollback() {
       recoveryMgr.rollback();
-      concurMgr.release();
+      concurMgr.rollback();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " rolled back");
    }
    
+   /**
+    * Returns the LSN of the last log record written by the transaction,
+    * which is where its rollback starts reading the log.
+    * @return the LSN of the transaction's last log record
+    */
+   public long lastLSN() {
+      return recoveryMgr.lastLSN();
+   }
+   
    /**
     * Flushes all modified buffers.
-    * Then goes through the log, rolling back all
+    * Then goes through the log, redoing the logged updates
+    * that may not be on disk, and rolling back all
     * uncommitted transactions.  Finally, 
     * writes a quiescent checkpoint record to the log.
     * This method is called only during system startup,
@@ -101,14 +130,27 @@ public class Transaction {
     * Returns the integer value stored at the
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
-    * then it calls the buffer to retrieve the value.
+    * then it calls the buffer to retrieve the value,
+    * which the buffer reads under its latch in shared mode.
+    * A transaction that reads a snapshot takes no lock, and reads
+    * the value from the version of the block that its snapshot sees.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the integer stored at that offset
     */
    public int getInt(Block blk, int offset) {
-      concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
+      if (concurMgr.readsSnapshot()) {
+         buff.latchShared();
+         try {
+            BlockVersion version = concurMgr.version(buff);
+            return version != null ? version.getInt(offset) : buff.getInt(offset);
+         }
+         finally {
+            buff.unlatchShared();
+         }
+      }
+      concurMgr.sLock(blk);
       return buff.getInt(offset);
    }
    
@@ -116,17 +158,59 @@ public class Transaction {
     * Returns the string value stored at the
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
-    * then it calls the buffer to retrieve the value.
+    * then it calls the buffer to retrieve the value,
+    * which the buffer reads under its latch in shared mode.
+    * A transaction that reads a snapshot takes no lock, and reads
+    * the value from the version of the block that its snapshot sees.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the string stored at that offset
     */
    public String getString(Block blk, int offset) {
-      concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
+      if (concurMgr.readsSnapshot()) {
+         buff.latchShared();
+         try {
+            BlockVersion version = concurMgr.version(buff);
+            return version != null ? version.getString(offset) : buff.getString(offset);
+         }
+         finally {
+            buff.unlatchShared();
+         }
+      }
+      concurMgr.sLock(blk);
       return buff.getString(offset);
    }
    
+   /**
+    * Returns a copy of the bytes stored at the
+    * specified offset of the specified block.
+    * The method first obtains an SLock on the block,
+    * then it calls the buffer to retrieve the bytes,
+    * which the buffer reads under its latch in shared mode.
+    * A transaction that reads a snapshot takes no lock, and reads
+    * the bytes from the version of the block that its snapshot sees.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @param length the number of bytes
+    * @return the bytes stored at that offset
+    */
+   public byte[] getBytes(Block blk, int offset, int length) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      if (concurMgr.readsSnapshot()) {
+         buff.latchShared();
+         try {
+            BlockVersion version = concurMgr.version(buff);
+            return version != null ? version.getBytes(offset, length) : buff.getBytes(offset, length);
+         }
+         finally {
+            buff.unlatchShared();
+         }
+      }
+      concurMgr.sLock(blk);
+      return buff.getBytes(offset, length);
+   }
+   
    /**
     * Stores an integer at the specified offset 
     * of the specified block.
@@ -136,6 +220,10 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer's latch is held in exclusive mode from the
+    * time the old value is read until the new value is stored;
+    * if the transaction has not modified the block before, its
+    * contents are first saved as a version for the snapshots.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
@@ -143,8 +231,15 @@ public class Transaction {
    public void setInt(Block blk, int offset, int val) {
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      buff.latchExclusive();
+      try {
+         concurMgr.beforeWrite(buff);
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
    }
    
    /**
@@ -156,6 +251,10 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer's latch is held in exclusive mode from the
+    * time the old value is read until the new value is stored;
+    * if the transaction has not modified the block before, its
+    * contents are first saved as a version for the snapshots.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
@@ -163,8 +262,44 @@ public class Transaction {
    public void setString(Block blk, int offset, String val) {
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      buff.latchExclusive();
+      try {
+         concurMgr.beforeWrite(buff);
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+   }
+   
+   /**
+    * Stores a range of bytes at the specified offset
+    * of the specified block.
+    * The method works like {@link #setInt(Block, int, int)},
+    * except that the bytes are logged by as few update log records
+    * as fit into the blocks of the log, rather than one per value.
+    * @param blk a reference to the disk block
+    * @param offset a byte offset within that block
+    * @param val the bytes to be stored
+    */
+   public void setBytes(Block blk, int offset, byte[] val) {
+      writeBytes(blk, offset, val, false);
+   }
+   
+   /**
+    * Stores the initial contents of a block that the transaction
+    * has appended, starting at the beginning of the block.
+    * The update is logged for redo only: nothing refers to the block
+    * unless the transaction commits, so its contents do not have to be
+    * restored if the transaction rolls back.
+    * If the transaction did not append the block, the update
+    * is logged for undo as well, as by {@link #setBytes(Block, int, byte[])}.
+    * @param blk a reference to the disk block
+    * @param image the bytes to be stored
+    */
+   public void format(Block blk, byte[] image) {
+      writeBytes(blk, 0, image, appended.contains(blk));
    }
    
    /**
@@ -172,6 +307,8 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * A transaction that reads a snapshot takes no lock; the blocks
+    * appended since its snapshot began read as newly formatted.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
@@ -194,10 +331,35 @@ public class Transaction {
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk);
       Block blk = myBuffers.pinNew(filename, fmtr);
+      appended.add(blk);
       unpin(blk);
       return blk;
    }
    
+   /**
+    * Stores the bytes one log record's worth at a time,
+    * holding the buffer's latch in exclusive mode throughout.
+    * Each part of the page gets the LSN of its own record, so that the
+    * recovery LSN of the buffer is that of the first record.
+    */
+   private void writeBytes(Block blk, int offset, byte[] val, boolean redoOnly) {
+      concurMgr.xLock(blk);
+      Buffer buff = myBuffers.getBuffer(blk);
+      int max = recoveryMgr.maxBytes(blk, redoOnly);
+      buff.latchExclusive();
+      try {
+         concurMgr.beforeWrite(buff);
+         for (int i = 0; i < val.length; i += max) {
+            byte[] part = Arrays.copyOfRange(val, i, Math.min(val.length, i + max));
+            long lsn = recoveryMgr.setBytes(buff, offset + i, part, redoOnly);
+            buff.setBytes(offset + i, part, txnum, lsn);
+         }
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+   }
+   
    private static synchronized int nextTxNumber() {
       nextTxNum++;
       System.out.println("new transaction: " + nextTxNum);
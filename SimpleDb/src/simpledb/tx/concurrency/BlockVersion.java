@@ -0,0 +1,62 @@
+package simpledb.tx.concurrency;
+
+import java.nio.ByteBuffer;
+import simpledb.file.Page;
+
+/**
+ * A former version of the contents of a block, which is kept for
+ * the transactions that read a snapshot of the database.
+ * The version is stamped with the commit number of the transaction
+ * that produced it, and points to the version that preceded it.
+ * Its values are read as from a {@link Page}.
+ */
+public class BlockVersion {
+   private final ByteBuffer contents;
+   final long commitNum;
+   BlockVersion next;
+
+   /**
+    * Creates a version of a block.
+    * @param image a copy of the contents of the block
+    * @param commitNum the commit number of the transaction that produced them
+    * @param next the preceding version, or null
+    */
+   BlockVersion(byte[] image, long commitNum, BlockVersion next) {
+      this.contents = ByteBuffer.wrap(image);
+      this.commitNum = commitNum;
+      this.next = next;
+   }
+
+   /**
+    * Returns the integer value at the specified offset of the version.
+    * @param offset the byte offset within the block
+    * @return the integer value at that offset
+    */
+   public int getInt(int offset) {
+      return contents.getInt(offset);
+   }
+
+   /**
+    * Returns the string value at the specified offset of the version.
+    * @param offset the byte offset within the block
+    * @return the string value at that offset
+    */
+   public String getString(int offset) {
+      int len = contents.getInt(offset);
+      return new String(getBytes(offset + Page.INT_SIZE, len));
+   }
+
+   /**
+    * Returns a copy of the bytes at the specified offset of the version.
+    * @param offset the byte offset within the block
+    * @param length the number of bytes
+    * @return the bytes at that offset
+    */
+   public byte[] getBytes(int offset, int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer view = contents.duplicate();
+      view.position(offset);
+      view.get(bytes);
+      return bytes;
+   }
+}
@@ -1,6 +1,8 @@
 package simpledb.tx.concurrency;
 
 import simpledb.file.Block;
+import simpledb.buffer.Buffer;
+import simpledb.server.SimpleDB;
 import java.util.*;
 
 /**
@@ -9,57 +11,295 @@ import java.util.*;
  * The concurrency manager keeps track of which locks the 
  * transaction currently has, and interacts with the
  * global lock table as needed. 
+ * The locks are requested on behalf of the transaction's id,
+ * which the lock table uses to detect deadlocks.
+ * <p>
+ * Locks are hierarchical: before a transaction locks a block in mode S or X,
+ * it locks the block's file in mode IS or IX (see {@link LockMode}).
+ * Once a transaction holds more block locks in a file than the
+ * escalation threshold (see {@link SimpleDB#LOCK_ESCALATION_THRESHOLD}),
+ * it locks the whole file instead: in mode X if it is modifying a block,
+ * and otherwise in mode S, or SIX if it has modified blocks of the file.
+ * The block locks that the file lock covers are then released,
+ * and the later requests on the file's blocks that it covers
+ * do not reach the lock table at all.
+ * <p>
+ * The concurrency manager of a read-only transaction takes no SLocks;
+ * instead, the transaction reads a snapshot of the database as of its
+ * beginning, from the global version store, so that it never blocks
+ * the transactions that modify the blocks it reads, nor is blocked by them.
+ * A read-only transaction may still modify its temporary tables, which
+ * it does not lock at all, since no other transaction uses them;
+ * a read-only transaction therefore never takes a write lock.
+ * Every transaction saves the contents of a block in the version store
+ * before it first modifies the block, so that snapshots can read them;
+ * while no snapshot is active, it records its undo chain instead,
+ * from which the contents are rebuilt if a snapshot begins.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
+   private static final long NO_SNAPSHOT = -1;
+   private static final int FILE_LOCK = -2; // the block number under which a whole file is locked
    
    /**
     * The global lock table.  This variable is static because all transactions
     * share the same table.
     */
-   private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
+   private static LockTable locktbl = new LockTable(SimpleDB.LOCK_PARTITIONS);
+   /**
+    * The global version store, which is shared for the same reason.
+    */
+   private static VersionStore versions = new VersionStore(SimpleDB.LOCK_PARTITIONS);
+   private static VersionCollector collector;
+   private Map<Block,LockMode> locks = new HashMap<Block,LockMode>();
+   private Map<String,Integer> blockLocks = new HashMap<String,Integer>(); // per file
+   private Set<Block> written = new HashSet<Block>();
+   private int txnum;
+   private boolean readOnly;
+   private UndoChain undo;
+   private long snapshot = NO_SNAPSHOT;
+   
+   /**
+    * Creates the concurrency manager of the specified transaction.
+    * @param txnum the id of the transaction
+    */
+   public ConcurrencyMgr(int txnum) {
+      this(txnum, false, null);
+   }
+   
+   /**
+    * Creates the concurrency manager of the specified transaction,
+    * which may be read-only.
+    * A read-only transaction reads a snapshot, unless the system
+    * keeps no block versions (see {@link SimpleDB#MULTI_VERSION}),
+    * in which case it locks the blocks it reads like any other.
+    * The undo chain of the transaction lets it postpone saving the
+    * contents of the blocks it modifies until a snapshot needs them.
+    * @param txnum the id of the transaction
+    * @param readOnly true if the transaction modifies only temporary tables
+    * @param undo the undo chain of the transaction, or null to always save the contents
+    */
+   public ConcurrencyMgr(int txnum, boolean readOnly, UndoChain undo) {
+      this.txnum = txnum;
+      this.readOnly = readOnly;
+      this.undo = undo;
+      if (readOnly && SimpleDB.MULTI_VERSION)
+         snapshot = versions.beginSnapshot();
+   }
    
    /**
     * Obtains an SLock on the block, if necessary.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no lock that covers it,
+    * after an IS lock on the block's file.
+    * A transaction that reads a snapshot takes no SLocks.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk);
-         locks.put(blk, "S");
-      }
+      if (snapshot != NO_SNAPSHOT)
+         return;
+      Block file = fileOf(blk);
+      if (holds(file, LockMode.S))
+         return;
+      lock(file, LockMode.IS);
+      if (lock(blk, LockMode.S))
+         countBlockLock(file, LockMode.S);
    }
    
    /**
     * Obtains an XLock on the block, if necessary.
-    * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * If the transaction has no lock that covers an XLock on that block,
+    * then the method first gets an IX lock on the block's file
+    * (if necessary), and then asks the lock table for the XLock,
+    * which upgrades the transaction's SLock on the block, if any.
+    * A read-only transaction may only modify the blocks
+    * of its temporary tables, which it does not lock.
     * @param blk a refrence to the disk block
+    * @throws ReadOnlyTransactionException if a read-only transaction asks to modify another block
     */
    public void xLock(Block blk) {
-      if (!hasXLock(blk)) {
-         sLock(blk);
-         locktbl.xLock(blk);
-         locks.put(blk, "X");
+      if (readOnly) {
+         if (!isTempBlock(blk))
+            throw new ReadOnlyTransactionException("read-only transaction " + txnum
+                                                   + " cannot modify " + blk);
+         return;
       }
+      Block file = fileOf(blk);
+      if (holds(file, LockMode.X))
+         return;
+      lock(file, LockMode.IX);
+      if (lock(blk, LockMode.X))
+         countBlockLock(file, LockMode.X);
+   }
+   
+   /**
+    * Determines whether the transaction reads a snapshot.
+    * @return true if the transaction reads a snapshot
+    */
+   public boolean readsSnapshot() {
+      return snapshot != NO_SNAPSHOT;
+   }
+   
+   /**
+    * Returns the version of the buffer's block that the transaction's
+    * snapshot sees, or null if the snapshot sees the contents of the buffer,
+    * including the transaction's own modifications.
+    * The caller must hold the buffer's latch in shared mode
+    * while it reads either of them.
+    * @param buff the buffer pinned to the block
+    * @return the version of the block, or null
+    */
+   public BlockVersion version(Buffer buff) {
+      return versions.version(buff.block(), snapshot, txnum);
+   }
+   
+   /**
+    * Saves the contents of the buffer's block as a version,
+    * if the transaction has not modified the block before;
+    * while no snapshot is active, only records the transaction's
+    * undo chain, from which the contents can be rebuilt.
+    * The blocks of temporary tables have no versions, since
+    * only the transaction that creates a table reads it.
+    * The caller must hold an XLock on the block, and the buffer's
+    * latch in exclusive mode.
+    * @param buff the buffer that the transaction is about to modify
+    */
+   public void beforeWrite(Buffer buff) {
+      Block blk = buff.block();
+      if (SimpleDB.MULTI_VERSION && !isTempBlock(blk) && written.add(blk))
+         versions.beforeWrite(buff, txnum, undo);
+   }
+   
+   /**
+    * Publishes the transaction's modifications to the
+    * snapshots that begin from now on, and releases all locks.
+    */
+   public void commit() {
+      versions.commit(written);
+      release();
+   }
+   
+   /**
+    * Discards the versions saved by the transaction,
+    * whose modifications have been undone, and releases all locks.
+    */
+   public void rollback() {
+      versions.rollback(written);
+      release();
    }
    
    /**
     * Releases all locks by asking the lock table to
-    * unlock each one.
+    * unlock each one, and ends the transaction's snapshot.
     */
    public void release() {
       for (Block blk : locks.keySet())
-         locktbl.unlock(blk);
+         locktbl.unlock(blk, txnum);
       locks.clear();
+      blockLocks.clear();
+      written.clear();
+      if (snapshot != NO_SNAPSHOT) {
+         versions.endSnapshot(snapshot);
+         snapshot = NO_SNAPSHOT;
+      }
+   }
+   
+   /**
+    * Starts a background thread that discards the block versions
+    * that no snapshot can see any more, at the specified interval.
+    * Any collector started earlier is stopped first.
+    * @param interval the number of milliseconds between collections
+    */
+   public static synchronized void startVersionCollector(long interval) {
+      stopVersionCollector();
+      collector = new VersionCollector(versions, interval);
+      collector.start();
+   }
+   
+   /**
+    * Stops the version collector, if one is running.
+    */
+   public static synchronized void stopVersionCollector() {
+      if (collector != null) {
+         collector.shutdown();
+         collector = null;
+      }
+   }
+   
+   /**
+    * Returns the global lock table, for the lock metrics.
+    * @return the lock table
+    */
+   static LockTable lockTable() {
+      return locktbl;
+   }
+   
+   /**
+    * Returns the global version store, for the version metrics.
+    * @return the version store
+    */
+   static VersionStore versionStore() {
+      return versions;
+   }
+   
+   /**
+    * Locks the block or file in the specified mode,
+    * unless the transaction already holds a lock that covers it.
+    * @return true if the transaction had no lock on the block before
+    */
+   private boolean lock(Block blk, LockMode mode) {
+      LockMode held = locks.get(blk);
+      if (held != null && held.covers(mode))
+         return false;
+      locktbl.lock(blk, txnum, mode);
+      locks.put(blk, held == null ? mode : held.combine(mode));
+      return held == null;
+   }
+   
+   private boolean holds(Block blk, LockMode mode) {
+      LockMode held = locks.get(blk);
+      return held != null && held.covers(mode);
+   }
+   
+   /**
+    * Counts a new block lock in the specified file, and escalates
+    * to a lock on the file if the count exceeds the threshold.
+    * The file is locked in mode X for an XLock, and otherwise in S
+    * combined with the IX lock it may hold; the block locks that
+    * the file lock now covers are released.
+    */
+   private void countBlockLock(Block file, LockMode mode) {
+      String filename = file.fileName();
+      Integer count = blockLocks.get(filename);
+      count = (count == null) ? 1 : count + 1;
+      if (count <= SimpleDB.LOCK_ESCALATION_THRESHOLD) {
+         blockLocks.put(filename, count);
+         return;
+      }
+      lock(file, mode);
+      LockMode covered = holds(file, LockMode.X) ? LockMode.X : LockMode.S;
+      count = 0;
+      Iterator<Map.Entry<Block,LockMode>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Map.Entry<Block,LockMode> e = iter.next();
+         Block blk = e.getKey();
+         if (blk.number() == FILE_LOCK || !blk.fileName().equals(filename))
+            continue;
+         if (covered.covers(e.getValue())) {
+            locktbl.unlock(blk, txnum);
+            iter.remove();
+         }
+         else
+            count++;
+      }
+      blockLocks.put(filename, count);
+   }
+   
+   private static Block fileOf(Block blk) {
+      return new Block(blk.fileName(), FILE_LOCK);
    }
    
-   private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+   private static boolean isTempBlock(Block blk) {
+      return blk.fileName().startsWith("temp");
    }
 }
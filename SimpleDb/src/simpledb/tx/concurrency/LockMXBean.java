@@ -0,0 +1,35 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The management interface of the lock table, which is registered
+ * with the platform MBean server under the name
+ * {@code simpledb:type=Locks}.
+ * Lock waits are the times that lock requests waited for
+ * conflicting locks to be released, including the requests
+ * that were aborted as the victims of a deadlock.
+ * The block versions are those kept for the snapshots
+ * of read-only transactions.
+ */
+public interface LockMXBean {
+   long getDeadlocks();
+
+   int getWaitingTransactions();
+
+   long getLockWaits();
+
+   long getLockWaitP50Micros();
+
+   long getLockWaitP99Micros();
+
+   long getMaxLockWaitMicros();
+
+   long[] getLockWaitHistogram();
+
+   long[] getLockWaitHistogramBoundsMicros();
+
+   int getActiveSnapshots();
+
+   long getBlockVersions();
+
+   long getBlockVersionsCollected();
+}
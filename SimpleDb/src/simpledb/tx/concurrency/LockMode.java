@@ -0,0 +1,66 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The modes in which a transaction can lock a block or a whole file.
+ * A transaction takes an intention lock (IS or IX) on a file before it
+ * locks one of its blocks in the corresponding mode (S or X); a lock on the
+ * file in mode S or X covers all of its blocks. SIX is the combination of
+ * S and IX, held by a transaction that reads the whole file and modifies
+ * some of its blocks.
+ */
+enum LockMode {
+   IS, IX, S, SIX, X;
+
+   private static final boolean[][] COMPATIBLE = {
+      //  IS     IX     S      SIX    X
+      {  true,  true,  true,  true,  false },  // IS
+      {  true,  true,  false, false, false },  // IX
+      {  true,  false, true,  false, false },  // S
+      {  true,  false, false, false, false },  // SIX
+      {  false, false, false, false, false },  // X
+   };
+
+   private static final boolean[][] COVERS = {
+      //  IS     IX     S      SIX    X
+      {  true,  false, false, false, false },  // IS
+      {  true,  true,  false, false, false },  // IX
+      {  true,  false, true,  false, false },  // S
+      {  true,  true,  true,  true,  false },  // SIX
+      {  true,  true,  true,  true,  true  },  // X
+   };
+
+   /**
+    * Determines whether a lock in this mode and a lock in the specified
+    * mode can be held on the same block by two different transactions.
+    * @param mode the other mode
+    * @return true if the two modes are compatible
+    */
+   boolean isCompatibleWith(LockMode mode) {
+      return COMPATIBLE[ordinal()][mode.ordinal()];
+   }
+
+   /**
+    * Determines whether a lock in this mode grants everything
+    * that a lock in the specified mode does.
+    * @param mode the other mode
+    * @return true if this mode covers the other
+    */
+   boolean covers(LockMode mode) {
+      return COVERS[ordinal()][mode.ordinal()];
+   }
+
+   /**
+    * Returns the weakest mode that covers both this mode
+    * and the specified one, which is the mode of a lock
+    * upgraded from this mode by a request in the other.
+    * @param mode the other mode
+    * @return the combination of the two modes
+    */
+   LockMode combine(LockMode mode) {
+      if (covers(mode))
+         return this;
+      if (mode.covers(this))
+         return mode;
+      return SIX; // the combination of IX and S
+   }
+}
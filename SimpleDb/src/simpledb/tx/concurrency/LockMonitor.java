@@ -0,0 +1,70 @@
+package simpledb.tx.concurrency;
+
+import java.util.concurrent.TimeUnit;
+
+import simpledb.server.LatencyHistogram;
+
+/**
+ * Exposes the deadlock and lock wait statistics
+ * of the global lock table, and the statistics of the
+ * global version store, as a {@link LockMXBean}.
+ */
+public class LockMonitor implements LockMXBean {
+   private LockTable locktbl = ConcurrencyMgr.lockTable();
+   private VersionStore versions = ConcurrencyMgr.versionStore();
+
+   @Override
+   public long getDeadlocks() {
+      return locktbl.deadlocks();
+   }
+
+   @Override
+   public int getWaitingTransactions() {
+      return locktbl.waitingTransactions();
+   }
+
+   @Override
+   public long getLockWaits() {
+      return locktbl.waitTimes().count();
+   }
+
+   @Override
+   public long getLockWaitP50Micros() {
+      return LatencyHistogram.percentileMicros(locktbl.waitTimes().counts(), 50);
+   }
+
+   @Override
+   public long getLockWaitP99Micros() {
+      return LatencyHistogram.percentileMicros(locktbl.waitTimes().counts(), 99);
+   }
+
+   @Override
+   public long getMaxLockWaitMicros() {
+      return TimeUnit.NANOSECONDS.toMicros(locktbl.waitTimes().maxNanos());
+   }
+
+   @Override
+   public long[] getLockWaitHistogram() {
+      return locktbl.waitTimes().counts();
+   }
+
+   @Override
+   public long[] getLockWaitHistogramBoundsMicros() {
+      return LatencyHistogram.upperBoundsMicros();
+   }
+
+   @Override
+   public int getActiveSnapshots() {
+      return versions.activeSnapshots();
+   }
+
+   @Override
+   public long getBlockVersions() {
+      return versions.versionCount();
+   }
+
+   @Override
+   public long getBlockVersionsCollected() {
+      return versions.collected();
+   }
+}
@@ -1,103 +1,390 @@
 package simpledb.tx.concurrency;
 
 import simpledb.file.Block;
+import simpledb.server.LatencyHistogram;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
+ * A block is locked in one of the modes of {@link LockMode}; the
+ * concurrency manager also locks whole files through it, as blocks
+ * whose number does not belong to any block of the file.
+ * The table is split into independent partitions, each protected by
+ * its own monitor; a block always belongs to the partition selected by
+ * its hash code, so that transactions locking unrelated blocks
+ * do not contend with each other.
+ * <p>
+ * Each locked block has the set of transactions holding it, each with the mode
+ * of its lock, and a FIFO queue of the threads waiting for it, which park
+ * until they are granted the lock. A new request is granted at once only if
+ * no one is waiting and no other transaction holds the block in an
+ * incompatible mode; otherwise it is placed at the end of the queue, so that
+ * a waiting XLock is not starved by a stream of compatible SLocks.
+ * A transaction that already holds the block asks for the combination of its
+ * mode and the requested one; such an upgrade is granted at once if it is
+ * compatible with the other holders, and otherwise waits ahead of the new
+ * requests, since they could not be granted before it anyway.
+ * When a lock is released, the waiters are granted the lock in queue order
+ * and woken up, up to the first one that conflicts with the holders.
+ * <p>
+ * Deadlocks are detected with a wait-for graph, in which a waiting
+ * transaction points to the other transactions holding the block it waits for
+ * in a mode incompatible with its request, and to the transactions queued
+ * ahead of it whose requests are incompatible with its own.
+ * The graph is not stored: it is followed through the table of waiting
+ * transactions and the holders of their blocks. A transaction looks for a
+ * cycle through itself when it starts to wait, and again at short intervals
+ * while it waits, so that a cycle closed by two transactions at once is
+ * also found. The youngest transaction of the cycle, which has the largest
+ * id, is chosen as the victim; it leaves its queue at once and gets a
+ * {@link LockAbortException}. A waiting thread that is interrupted does the same.
  * @author Edward Sciore
  */
 class LockTable {
-   private static final long MAX_TIME = 10000; // 10 seconds
-   
-   private Map<Block,Integer> locks = new HashMap<Block,Integer>();
-   
+   private static final long CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+   private Partition[] partitions;
+   private Map<Integer,Waiter> waiting = new ConcurrentHashMap<Integer,Waiter>();
+   private final Object detector = new Object();
+   private AtomicLong deadlocks = new AtomicLong();
+   private LatencyHistogram waitTimes = new LatencyHistogram();
+
    /**
-    * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
+    * Creates a lock table having the specified number of partitions.
+    * @param numparts the number of partitions
+    */
+   LockTable(int numparts) {
+      partitions = new Partition[Math.max(1, numparts)];
+      for (int i = 0; i < partitions.length; i++)
+         partitions[i] = new Partition();
+   }
+
+   /**
+    * Grants the specified transaction a lock on the specified block in the
+    * specified mode, combined with the mode in which it already holds the block.
+    * If another transaction holds the block in an incompatible mode
+    * when the method is called, or other transactions are waiting for
+    * the block, then the calling thread will be placed
+    * on the block's wait queue until it is granted the lock.
+    * If the transaction is chosen as the victim of a deadlock
+    * while it waits, then an exception is thrown.
     * @param blk a reference to the disk block
+    * @param txnum the id of the transaction
+    * @param mode the requested mode
     */
-   public synchronized void sLock(Block blk) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         while (hasXlock(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasXlock(blk))
-            throw new LockAbortException();
-         int val = getLockVal(blk);  // will not be negative
-         locks.put(blk, val+1);
-      }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+   void lock(Block blk, int txnum, LockMode mode) {
+      Partition p = partitionFor(blk);
+      Waiter w;
+      synchronized (p) {
+         BlockLock lock = p.locks.get(blk);
+         if (lock == null) {
+            lock = new BlockLock();
+            p.locks.put(blk, lock);
+         }
+         LockMode held = lock.modeOf(txnum);
+         LockMode target = (held == null) ? mode : held.combine(mode);
+         if (target == held)
+            return;
+         boolean upgrade = (held != null);
+         if ((upgrade || lock.waiters.isEmpty()) && lock.allows(txnum, target)) {
+            lock.set(txnum, target);
+            return;
+         }
+         w = new Waiter(blk, txnum, target, upgrade);
+         lock.enqueue(w);
       }
+      await(p, w);
    }
-   
+
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
+    * Releases the lock that the specified transaction holds on the specified block.
+    * The waiters that can now be granted the lock are woken up.
     * @param blk a reference to the disk block
+    * @param txnum the id of the transaction
+    */
+   void unlock(Block blk, int txnum) {
+      Partition p = partitionFor(blk);
+      synchronized (p) {
+         BlockLock lock = p.locks.get(blk);
+         lock.remove(txnum);
+         grantWaiters(p, blk, lock);
+      }
+   }
+
+   /**
+    * Returns the number of deadlocks that have been broken
+    * by aborting a victim.
+    * @return the number of deadlocks
+    */
+   long deadlocks() {
+      return deadlocks.get();
+   }
+
+   /**
+    * Returns the histogram of the times that lock requests
+    * have waited, whether they were granted or aborted.
+    * @return the histogram of lock waits
     */
-   synchronized void xLock(Block blk) {
+   LatencyHistogram waitTimes() {
+      return waitTimes;
+   }
+
+   /**
+    * Returns the number of transactions that are waiting for a lock.
+    * @return the number of waiting transactions
+    */
+   int waitingTransactions() {
+      return waiting.size();
+   }
+
+   /**
+    * Waits until the specified waiter has been granted its lock,
+    * looking for a deadlock when it starts to wait and then periodically.
+    * If the waiter is chosen as the victim of a deadlock, or its thread
+    * is interrupted, it is removed from the queue instead.
+    */
+   private void await(Partition p, Waiter w) {
+      long start = System.nanoTime();
+      waiting.put(w.txnum, w);
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasOtherSLocks(blk))
-            throw new LockAbortException();
-         locks.put(blk, -1);
+         detectDeadlock(w.txnum);
+         while (!w.granted) {
+            if (w.victim || Thread.interrupted()) {
+               synchronized (p) {
+                  if (w.granted)
+                     return;
+                  BlockLock lock = p.locks.get(w.blk);
+                  lock.waiters.remove(w);
+                  grantWaiters(p, w.blk, lock);
+               }
+               if (w.victim)
+                  throw new LockAbortException("transaction " + w.txnum + " aborted to break a deadlock");
+               throw new LockAbortException();
+            }
+            LockSupport.parkNanos(this, CHECK_INTERVAL);
+            if (!w.granted && !w.victim)
+               detectDeadlock(w.txnum);
+         }
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         waiting.remove(w.txnum);
+         waitTimes.record(System.nanoTime() - start);
       }
    }
-   
+
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
+    * Grants the lock, in queue order, to the waiters that are
+    * compatible with its other holders, stopping at the first one
+    * that is not, and removes the lock from the table if it is no
+    * longer used.
+    * The caller must hold the monitor of the partition.
+    */
+   private void grantWaiters(Partition p, Block blk, BlockLock lock) {
+      Iterator<Waiter> iter = lock.waiters.iterator();
+      while (iter.hasNext()) {
+         Waiter w = iter.next();
+         if (!lock.allows(w.txnum, w.mode))
+            break;
+         lock.set(w.txnum, w.mode);
+         iter.remove();
+         w.granted = true;
+         LockSupport.unpark(w.thread);
+      }
+      if (lock.count == 0 && lock.waiters.isEmpty())
+         p.locks.remove(blk);
+   }
+
+   /**
+    * Looks for a cycle of the wait-for graph through the specified
+    * transaction, and aborts the youngest transaction of the cycle.
+    * The graph is read one partition at a time while other transactions
+    * keep running, so the cycle is checked again before a victim is chosen:
+    * a deadlock does not go away by itself, whereas an edge read from a
+    * wait that has since ended is no longer there.
+    * Detections are serialized, so that a deadlock gets a single victim.
+    * The caller must not hold the monitor of any partition.
+    */
+   private void detectDeadlock(int txnum) {
+      synchronized (detector) {
+         List<Integer> cycle = new ArrayList<Integer>();
+         cycle.add(txnum);
+         if (!findCycle(txnum, cycle, new HashSet<Integer>()) || !isCycle(cycle))
+            return;
+         Waiter victim = waiting.get(Collections.max(cycle));
+         victim.victim = true;
+         LockSupport.unpark(victim.thread);
+         deadlocks.incrementAndGet();
+      }
+   }
+
+   /**
+    * Extends the specified path of the wait-for graph, depth first,
+    * until it leads back to its first transaction.
+    * @param txnum the last transaction of the path
+    * @param path the transactions of the path, each waiting for the next
+    * @param visited the transactions already explored
+    * @return true if the path has been extended to a cycle
     */
-   synchronized void unlock(Block blk) {
-      int val = getLockVal(blk);
-      if (val > 1)
-         locks.put(blk, val-1);
-      else {
-         locks.remove(blk);
-         notifyAll();
+   private boolean findCycle(int txnum, List<Integer> path, Set<Integer> visited) {
+      visited.add(txnum);
+      for (int holder : waitsFor(txnum)) {
+         if (holder == path.get(0))
+            return true;
+         if (!visited.contains(holder)) {
+            path.add(holder);
+            if (findCycle(holder, path, visited))
+               return true;
+            path.remove(path.size() - 1);
+         }
       }
+      return false;
    }
-   
-   private boolean hasXlock(Block blk) {
-      return getLockVal(blk) < 0;
+
+   /**
+    * Determines whether each transaction of the specified path
+    * is still waiting for the next one, and the last for the first.
+    */
+   private boolean isCycle(List<Integer> path) {
+      for (int i = 0; i < path.size(); i++) {
+         int next = path.get((i + 1) % path.size());
+         if (!waitsFor(path.get(i)).contains(next))
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Returns the transactions that the specified transaction waits for:
+    * the other holders of the block it is waiting for whose modes
+    * are incompatible with its request, if any, and the transactions
+    * queued ahead of it whose requests are incompatible with its own.
+    */
+   private Set<Integer> waitsFor(int txnum) {
+      Waiter w = waiting.get(txnum);
+      if (w == null)
+         return Collections.emptySet();
+      Partition p = partitionFor(w.blk);
+      synchronized (p) {
+         BlockLock lock = p.locks.get(w.blk);
+         if (w.granted || w.victim || lock == null)
+            return Collections.emptySet();
+         Set<Integer> holders = new HashSet<Integer>();
+         for (int i = 0; i < lock.count; i++)
+            if (lock.holders[i] != txnum && !lock.modes[i].isCompatibleWith(w.mode))
+               holders.add(lock.holders[i]);
+         for (Waiter ahead : lock.waiters) {
+            if (ahead == w)
+               break;
+            if (!ahead.mode.isCompatibleWith(w.mode))
+               holders.add(ahead.txnum);
+         }
+         return holders;
+      }
    }
-   
-   private boolean hasOtherSLocks(Block blk) {
-      return getLockVal(blk) > 1;
+
+   private Partition partitionFor(Block blk) {
+      int h = blk.hashCode() & Integer.MAX_VALUE;
+      return partitions[h % partitions.length];
    }
-   
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+
+   /**
+    * A partition of the lock table.
+    */
+   private static class Partition {
+      final Map<Block,BlockLock> locks = new HashMap<Block,BlockLock>();
    }
-   
-   private int getLockVal(Block blk) {
-      Integer ival = locks.get(blk);
-      return (ival == null) ? 0 : ival.intValue();
+
+   /**
+    * The lock of a block: the ids of the transactions that hold it,
+    * the mode of each, and the queue of waiting threads.
+    * The holders are kept in arrays, since most blocks have a single holder.
+    */
+   private static class BlockLock {
+      int[] holders = new int[2];
+      LockMode[] modes = new LockMode[2];
+      int count = 0;
+      final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+      LockMode modeOf(int txnum) {
+         for (int i = 0; i < count; i++)
+            if (holders[i] == txnum)
+               return modes[i];
+         return null;
+      }
+
+      /**
+       * Adds the waiter to the queue: at the end for a new request,
+       * and after the other upgrades for an upgrade.
+       */
+      void enqueue(Waiter w) {
+         if (w.upgrade) {
+            ListIterator<Waiter> iter = waiters.listIterator();
+            while (iter.hasNext())
+               if (!iter.next().upgrade) {
+                  iter.previous();
+                  break;
+               }
+            iter.add(w);
+         }
+         else
+            waiters.addLast(w);
+      }
+
+      boolean allows(int txnum, LockMode mode) {
+         for (int i = 0; i < count; i++)
+            if (holders[i] != txnum && !modes[i].isCompatibleWith(mode))
+               return false;
+         return true;
+      }
+
+      void set(int txnum, LockMode mode) {
+         for (int i = 0; i < count; i++)
+            if (holders[i] == txnum) {
+               modes[i] = mode;
+               return;
+            }
+         if (count == holders.length) {
+            holders = Arrays.copyOf(holders, 2 * count);
+            modes = Arrays.copyOf(modes, 2 * count);
+         }
+         holders[count] = txnum;
+         modes[count++] = mode;
+      }
+
+      void remove(int txnum) {
+         for (int i = 0; i < count; i++)
+            if (holders[i] == txnum) {
+               holders[i] = holders[--count];
+               modes[i] = modes[count];
+               modes[count] = null;
+               return;
+            }
+      }
+   }
+
+   /**
+    * A transaction waiting for a lock, whether it already holds the block
+    * in a weaker mode, and whether it has been granted the lock or chosen
+    * as the victim of a deadlock.
+    */
+   private static class Waiter {
+      final Thread thread = Thread.currentThread();
+      final Block blk;
+      final int txnum;
+      final LockMode mode;
+      final boolean upgrade;
+      volatile boolean granted = false;
+      volatile boolean victim = false;
+
+      Waiter(Block blk, int txnum, LockMode mode, boolean upgrade) {
+         this.blk = blk;
+         this.txnum = txnum;
+         this.mode = mode;
+         this.upgrade = upgrade;
+      }
    }
 }
@@ -0,0 +1,15 @@
+package simpledb.tx.concurrency;
+
+/**
+ * A runtime exception indicating that a read-only transaction
+ * attempted to modify a block of a table that is not temporary.
+ */
+@SuppressWarnings("serial")
+public class ReadOnlyTransactionException extends RuntimeException {
+   public ReadOnlyTransactionException() {
+   }
+
+   public ReadOnlyTransactionException(String message) {
+      super(message);
+   }
+}
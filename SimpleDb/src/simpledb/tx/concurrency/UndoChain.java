@@ -0,0 +1,30 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.Block;
+import simpledb.log.LogCursor;
+
+/**
+ * The chain of log records of a transaction, from which the version
+ * store rebuilds the contents that a block had before the transaction
+ * modified it, when the transaction did not save them
+ * (see {@link ConcurrencyMgr#beforeWrite(simpledb.buffer.Buffer)}).
+ */
+public interface UndoChain {
+   /**
+    * Writes the old values of the transaction's updates of the specified
+    * block into the image of its current contents, from the latest update
+    * back to the first, which leaves the contents the block had before
+    * the transaction modified it.
+    * The caller must hold the latch of the block's buffer, so that
+    * the transaction does not modify the block meanwhile.
+    * The records are read through the specified cursor, which the caller
+    * shares between blocks so that the log is not forced for each of them;
+    * a new cursor is created instead if there is none, or if the transaction
+    * has logged records beyond the end of the cursor.
+    * @param blk a reference to the disk block
+    * @param image a copy of the current contents of the block
+    * @param cursor a cursor for the records of the log, or null
+    * @return the cursor through which the records were read
+    */
+   LogCursor rebuildBeforeImage(Block blk, byte[] image, LogCursor cursor);
+}
@@ -0,0 +1,45 @@
+package simpledb.tx.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A background thread that discards, at a fixed interval,
+ * the block versions that no active snapshot can see
+ * (see {@link VersionStore#collect()}).
+ */
+class VersionCollector extends Thread {
+   private VersionStore versions;
+   private long interval;
+   private volatile boolean stopped = false;
+   
+   /**
+    * Creates a version collector.
+    * @param versions the version store to collect
+    * @param interval the number of milliseconds between collections
+    */
+   VersionCollector(VersionStore versions, long interval) {
+      super("simpledb-version-collector");
+      this.versions = versions;
+      this.interval = interval;
+      setDaemon(true);
+   }
+   
+   @Override
+   public void run() {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(interval);
+      while (!stopped) {
+         LockSupport.parkNanos(this, nanos);
+         if (!stopped)
+            versions.collect();
+      }
+   }
+   
+   /**
+    * Stops the collector; a collection in progress is completed.
+    */
+   void shutdown() {
+      stopped = true;
+      LockSupport.unpark(this);
+   }
+}
@@ -0,0 +1,374 @@
+package simpledb.tx.concurrency;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.log.LogCursor;
+import simpledb.server.SimpleDB;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version store, which keeps the former versions of the blocks
+ * that transactions modify, so that a read-only transaction can read
+ * a snapshot of the database without locks.
+ * <p>
+ * Each committing transaction that modified a block gets the next commit
+ * number, and a snapshot is the number of the last commit when it began.
+ * Before a transaction first modifies a block, it saves the current contents
+ * of the block as a version, stamped with the commit number of the transaction
+ * that produced them; the contents of the buffer are then those of the writer
+ * until it commits, when they are stamped with its own commit number.
+ * A snapshot sees the contents of the buffer if they are stamped with a number
+ * no later than the snapshot's, and otherwise the latest version that is.
+ * The numbers of a commit are published to all of its blocks at once,
+ * with respect to the beginning of snapshots.
+ * <p>
+ * Saving the contents is only worthwhile while some snapshot is active.
+ * Otherwise, a transaction only records that it is modifying the block,
+ * along with its chain of log records; when a snapshot begins, the contents
+ * of each block recorded this way are rebuilt
+ * by undoing the updates of its writer in a copy of its buffer
+ * (see {@link UndoChain}), and saved as a version. Transactions that only
+ * write while no read-only transaction runs thus copy no pages at all.
+ * <p>
+ * The contents of a block that has no versions are visible to every snapshot.
+ * A rolled back transaction discards the version it saved, since undoing its
+ * modifications restored the buffer to the same contents. The exception is
+ * the initial contents of a block that the transaction appended, which are
+ * logged for redo only and so are not undone (see
+ * {@link simpledb.tx.Transaction#format}); no snapshot reads them, though,
+ * since nothing refers to the block once the transaction has rolled back.
+ * The versions that no active snapshot can see are discarded by
+ * {@link #collect()}; as in the lock table, the blocks are split into
+ * independent partitions, each protected by its own monitor.
+ */
+class VersionStore {
+   private static final int NO_WRITER = -1;
+
+   private Partition[] partitions;
+   private long lastCommit = 0;
+   private TreeMap<Long,Integer> snapshots = new TreeMap<Long,Integer>();
+   private volatile int active = 0; // the number of snapshots that are active or beginning
+   private AtomicInteger unsaved = new AtomicInteger(); // the number of blocks with an undo chain
+   private AtomicLong versionCount = new AtomicLong(), collected = new AtomicLong();
+
+   /**
+    * Creates a version store having the specified number of partitions.
+    * @param numparts the number of partitions
+    */
+   VersionStore(int numparts) {
+      partitions = new Partition[Math.max(1, numparts)];
+      for (int i = 0; i < partitions.length; i++)
+         partitions[i] = new Partition();
+   }
+
+   /**
+    * Begins a snapshot, which sees the modifications of the
+    * transactions that have committed so far.
+    * The contents of the blocks that transactions are modifying without
+    * having saved them are saved first, outside the monitor of the store,
+    * so that commits do not wait for the buffers and log reads this needs.
+    * The snapshot is counted as active meanwhile, so that no writer records
+    * an undo chain any more; the blocks whose writers commit in the meantime
+    * need no version, since the snapshot begins after their commit.
+    * If the contents cannot be saved, the snapshot does not begin.
+    * @return the snapshot, which is the number of the last commit
+    */
+   long beginSnapshot() {
+      synchronized (this) {
+         active++;
+      }
+      boolean begun = false;
+      try {
+         while (true) {
+            if (unsaved.get() > 0)
+               saveModifiedBlocks();
+            synchronized (this) {
+               if (unsaved.get() == 0) {
+                  Integer count = snapshots.get(lastCommit);
+                  snapshots.put(lastCommit, count == null ? 1 : count + 1);
+                  begun = true;
+                  return lastCommit;
+               }
+            }
+         }
+      }
+      finally {
+         if (!begun)
+            synchronized (this) {
+               active--;
+            }
+      }
+   }
+
+   /**
+    * Ends the specified snapshot, whose versions may then be discarded.
+    * @param snapshot the snapshot
+    */
+   synchronized void endSnapshot(long snapshot) {
+      active--;
+      int count = snapshots.get(snapshot);
+      if (count == 1)
+         snapshots.remove(snapshot);
+      else
+         snapshots.put(snapshot, count - 1);
+   }
+
+   /**
+    * Records that the specified transaction is about to modify
+    * the buffer's block for the first time, and saves the current
+    * contents of the block if a snapshot is active; otherwise the
+    * contents can be rebuilt from the transaction's undo chain.
+    * The caller must hold an XLock on the block, and the latch
+    * of its buffer in exclusive mode.
+    * @param buff the buffer pinned to the block
+    * @param txnum the id of the modifying transaction
+    * @param undo the undo chain of the transaction, or null if the contents must be saved
+    */
+   void beforeWrite(Buffer buff, int txnum, UndoChain undo) {
+      Block blk = buff.block();
+      Partition p = partitionFor(blk);
+      synchronized (p) {
+         BlockVersions bv = p.blocks.get(blk);
+         if (bv == null) {
+            bv = new BlockVersions();
+            p.blocks.put(blk, bv);
+         }
+         bv.writer = txnum;
+         if (active == 0 && undo != null) {
+            bv.undo = undo;
+            unsaved.incrementAndGet();
+            return;
+         }
+         byte[] image = buff.getBytes(0, SimpleDB.fileMgr().blockSize());
+         bv.versions = new BlockVersion(image, bv.commitNum, bv.versions);
+      }
+      versionCount.incrementAndGet();
+   }
+
+   /**
+    * Saves the contents of the blocks whose writers recorded an undo chain
+    * instead. The contents are rebuilt from a copy of each block's buffer,
+    * under its latch, so that the writer cannot modify it meanwhile.
+    * The partitions are not locked while a buffer is latched, since a writer
+    * latches its buffer before it locks the partition in {@link #beforeWrite}.
+    * The log records are read through one cursor, which the undo chain
+    * replaces only when its writer has logged records beyond the cursor's
+    * end, since each new cursor forces the log.
+    * The caller must have counted the new snapshot as active,
+    * so that no writer records an undo chain any more.
+    */
+   private void saveModifiedBlocks() {
+      Map<Block,BlockVersions> pending = new HashMap<Block,BlockVersions>();
+      for (Partition p : partitions) {
+         synchronized (p) {
+            for (Map.Entry<Block,BlockVersions> e : p.blocks.entrySet())
+               if (e.getValue().undo != null)
+                  pending.put(e.getKey(), e.getValue());
+         }
+      }
+      BufferMgr bm = SimpleDB.bufferMgr();
+      LogCursor cursor = null;
+      for (Map.Entry<Block,BlockVersions> e : pending.entrySet()) {
+         Block blk = e.getKey();
+         BlockVersions bv = e.getValue();
+         Buffer buff = bm.pin(blk);
+         buff.latchShared();
+         try {
+            UndoChain undo;
+            synchronized (partitionFor(blk)) {
+               undo = bv.undo;
+            }
+            if (undo == null)
+               continue; // rolled back meanwhile
+            byte[] image = buff.getBytes(0, SimpleDB.fileMgr().blockSize());
+            cursor = undo.rebuildBeforeImage(blk, image, cursor);
+            synchronized (partitionFor(blk)) {
+               if (bv.undo != undo)
+                  continue;
+               bv.versions = new BlockVersion(image, bv.commitNum, bv.versions);
+               bv.undo = null;
+               unsaved.decrementAndGet();
+            }
+            versionCount.incrementAndGet();
+         }
+         finally {
+            buff.unlatchShared();
+            bm.unpin(buff);
+         }
+      }
+   }
+
+   /**
+    * Returns the version of the block that the specified snapshot sees,
+    * or null if it sees the contents of the buffer.
+    * The caller must hold the latch of the block's buffer in shared mode.
+    * @param blk a reference to the disk block
+    * @param snapshot the snapshot
+    * @param txnum the id of the reading transaction, which sees its own modifications
+    * @return the version that the snapshot sees, or null
+    * @throws IllegalStateException if the version that the snapshot sees was not saved
+    */
+   BlockVersion version(Block blk, long snapshot, int txnum) {
+      Partition p = partitionFor(blk);
+      synchronized (p) {
+         BlockVersions bv = p.blocks.get(blk);
+         if (bv == null || bv.writer == txnum)
+            return null;
+         if (bv.writer == NO_WRITER && bv.commitNum <= snapshot)
+            return null;
+         BlockVersion v = bv.versions;
+         while (v != null && v.commitNum > snapshot)
+            v = v.next;
+         if (v == null)
+            throw new IllegalStateException("no version of " + blk
+                  + " was saved for snapshot " + snapshot);
+         return v;
+      }
+   }
+
+   /**
+    * Stamps the contents of the specified blocks, which a transaction
+    * has modified, with the next commit number.
+    * @param blks the blocks modified by the committing transaction
+    */
+   synchronized void commit(Collection<Block> blks) {
+      if (blks.isEmpty())
+         return;
+      lastCommit++;
+      for (Block blk : blks) {
+         Partition p = partitionFor(blk);
+         synchronized (p) {
+            BlockVersions bv = p.blocks.get(blk);
+            bv.writer = NO_WRITER;
+            if (bv.undo != null) {
+               bv.undo = null;
+               unsaved.decrementAndGet();
+            }
+            bv.commitNum = lastCommit;
+         }
+      }
+   }
+
+   /**
+    * Discards the versions saved by a transaction that has rolled back
+    * its modifications of the specified blocks.
+    * @param blks the blocks modified by the transaction
+    */
+   void rollback(Collection<Block> blks) {
+      for (Block blk : blks) {
+         Partition p = partitionFor(blk);
+         synchronized (p) {
+            BlockVersions bv = p.blocks.get(blk);
+            bv.writer = NO_WRITER;
+            if (bv.undo != null) {
+               bv.undo = null;
+               unsaved.decrementAndGet();
+               continue;
+            }
+            bv.versions = bv.versions.next;
+         }
+         versionCount.decrementAndGet();
+      }
+   }
+
+   /**
+    * Discards the versions that no active snapshot can see.
+    * A snapshot sees the latest version no later than itself, so each block
+    * keeps its versions down to the first one that the oldest snapshot sees;
+    * a block whose current contents are visible to every snapshot,
+    * and which no transaction is modifying, keeps none.
+    * @return the number of versions discarded
+    */
+   int collect() {
+      long oldest;
+      synchronized (this) {
+         oldest = snapshots.isEmpty() ? lastCommit : snapshots.firstKey();
+      }
+      int count = 0;
+      for (Partition p : partitions) {
+         synchronized (p) {
+            Iterator<BlockVersions> iter = p.blocks.values().iterator();
+            while (iter.hasNext()) {
+               BlockVersions bv = iter.next();
+               if (bv.writer == NO_WRITER && bv.commitNum <= oldest) {
+                  count += length(bv.versions);
+                  iter.remove();
+                  continue;
+               }
+               BlockVersion v = bv.versions;
+               if (v == null)
+                  continue;
+               while (v.commitNum > oldest && v.next != null)
+                  v = v.next;
+               count += length(v.next);
+               v.next = null;
+            }
+         }
+      }
+      versionCount.addAndGet(-count);
+      collected.addAndGet(count);
+      return count;
+   }
+
+   /**
+    * Returns the number of versions currently kept.
+    * @return the number of versions
+    */
+   long versionCount() {
+      return versionCount.get();
+   }
+
+   /**
+    * Returns the number of versions discarded so far.
+    * @return the number of versions collected
+    */
+   long collected() {
+      return collected.get();
+   }
+
+   /**
+    * Returns the number of snapshots currently being read.
+    * @return the number of active snapshots
+    */
+   synchronized int activeSnapshots() {
+      int count = 0;
+      for (int n : snapshots.values())
+         count += n;
+      return count;
+   }
+
+   private static int length(BlockVersion v) {
+      int n = 0;
+      for (; v != null; v = v.next)
+         n++;
+      return n;
+   }
+
+   private Partition partitionFor(Block blk) {
+      int h = blk.hashCode() & Integer.MAX_VALUE;
+      return partitions[h % partitions.length];
+   }
+
+   /**
+    * A partition of the version store.
+    */
+   private static class Partition {
+      final Map<Block,BlockVersions> blocks = new HashMap<Block,BlockVersions>();
+   }
+
+   /**
+    * The versions of a block: the commit number of the contents of its buffer,
+    * the id of the transaction modifying it, if any, the undo chain of that
+    * transaction if it did not save the contents, and the former versions,
+    * the latest first.
+    */
+   private static class BlockVersions {
+      long commitNum = 0;
+      int writer = NO_WRITER;
+      UndoChain undo;
+      BlockVersion versions;
+   }
+}
@@ -0,0 +1,81 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.INT_SIZE;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+
+/**
+ * The CKPT_BEGIN log record, which starts a nonquiescent checkpoint.
+ * The records of the checkpoint follow it, interleaved with the records
+ * of the transactions that keep running, up to the CKPT_END record.
+ */
+class CheckpointBeginRecord implements LogRecord {
+   private long lsn = -1;
+   
+   /**
+    * Creates a record that begins a nonquiescent checkpoint.
+    */
+   public CheckpointBeginRecord() {}
+   
+   /**
+    * Creates a log record by reading no other values 
+    * from the basic log record.
+    * @param rec the basic log record
+    */
+   public CheckpointBeginRecord(BasicLogRecord rec) {
+      lsn = rec.lsn();
+   }
+   
+   /** 
+    * Writes a checkpoint begin record to the log.
+    * This log record contains the CKPT_BEGIN operator,
+    * and nothing else.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return INT_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, CKPT_BEGIN);
+   }
+   
+   public long lsn() {
+      return lsn;
+   }
+   
+   public int op() {
+      return CKPT_BEGIN;
+   }
+   
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a negative value, because checkpoint records
+    * are not chained to any transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+   
+   public String toString() {
+      return "<CKPT_BEGIN>";
+   }
+}
@@ -0,0 +1,93 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+
+/**
+ * The CKPT_END log record, which completes a nonquiescent checkpoint.
+ * A checkpoint whose end record is not in the log is ignored by recovery.
+ */
+class CheckpointEndRecord implements LogRecord {
+   private long beginlsn;
+   private long lsn = -1;
+   
+   /**
+    * Creates a record that ends the checkpoint begun at the specified LSN.
+    * @param beginlsn the LSN of the CKPT_BEGIN record
+    */
+   public CheckpointEndRecord(long beginlsn) {
+      this.beginlsn = beginlsn;
+   }
+   
+   /**
+    * Creates a log record by reading one other value from the log.
+    * @param rec the basic log record
+    */
+   public CheckpointEndRecord(BasicLogRecord rec) {
+      beginlsn = rec.nextLong();
+      lsn = rec.lsn();
+   }
+   
+   /** 
+    * Writes a checkpoint end record to the log.
+    * This log record contains the CKPT_END operator,
+    * followed by the LSN of the CKPT_BEGIN record.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return INT_SIZE + LONG_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, CKPT_END);
+      page.setLong(pos + INT_SIZE, beginlsn);
+   }
+   
+   public long lsn() {
+      return lsn;
+   }
+   
+   public int op() {
+      return CKPT_END;
+   }
+   
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a negative value, because checkpoint records
+    * are not chained to any transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Returns the LSN of the record that began the checkpoint.
+    * @return the begin LSN
+    */
+   public long beginLSN() {
+      return beginlsn;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+   
+   public String toString() {
+      return "<CKPT_END " + beginlsn + ">";
+   }
+}
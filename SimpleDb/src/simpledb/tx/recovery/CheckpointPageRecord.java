@@ -0,0 +1,114 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+
+/**
+ * The CKPT_PAGE log record, which lists a block that was dirty
+ * in the buffer pool during a nonquiescent checkpoint, and the LSN of the
+ * first log record that modified it since it was last written.
+ */
+class CheckpointPageRecord implements LogRecord {
+   private Block blk;
+   private long reclsn;
+   private long lsn = -1;
+   
+   /**
+    * Creates a record for a dirty block.
+    * @param blk the dirty block
+    * @param reclsn the LSN of the first record that dirtied the block
+    */
+   public CheckpointPageRecord(Block blk, long reclsn) {
+      this.blk = blk;
+      this.reclsn = reclsn;
+   }
+   
+   /**
+    * Creates a log record by reading three other values from the log.
+    * @param rec the basic log record
+    */
+   public CheckpointPageRecord(BasicLogRecord rec) {
+      String filename = rec.nextString();
+      int blknum = rec.nextInt();
+      blk = new Block(filename, blknum);
+      reclsn = rec.nextLong();
+      lsn = rec.lsn();
+   }
+   
+   /** 
+    * Writes a checkpoint page record to the log.
+    * This log record contains the CKPT_PAGE operator,
+    * followed by the filename and number of the block,
+    * and the LSN of the first record that dirtied it.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return 2 * INT_SIZE + STR_SIZE(blk.fileName().length()) + LONG_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, CKPT_PAGE);
+      pos += INT_SIZE;
+      page.setString(pos, blk.fileName());
+      pos += STR_SIZE(blk.fileName().length());
+      page.setInt(pos, blk.number());
+      page.setLong(pos + INT_SIZE, reclsn);
+   }
+   
+   public long lsn() {
+      return lsn;
+   }
+   
+   public int op() {
+      return CKPT_PAGE;
+   }
+   
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a negative value, because checkpoint records
+    * are not chained to any transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Returns the dirty block.
+    * @return the block
+    */
+   public Block block() {
+      return blk;
+   }
+   
+   /**
+    * Returns the LSN of the first record that dirtied the block.
+    * @return the recovery LSN of the block
+    */
+   public long recoveryLSN() {
+      return reclsn;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+   
+   public String toString() {
+      return "<CKPT_PAGE " + blk + " " + reclsn + ">";
+   }
+}
@@ -1,5 +1,7 @@
 package simpledb.tx.recovery;
 
+import static simpledb.file.Page.INT_SIZE;
+import simpledb.file.Page;
 import simpledb.log.BasicLogRecord;
 
 /**
@@ -7,6 +9,7 @@ import simpledb.log.BasicLogRecord;
  * @author Edward Sciore
  */
 class CheckpointRecord implements LogRecord {
+   private long lsn = -1;
    
    /**
     * Creates a quiescent checkpoint record.
@@ -18,7 +21,9 @@ class CheckpointRecord implements LogRecord {
     * from the basic log record.
     * @param rec the basic log record
     */
-   public CheckpointRecord(BasicLogRecord rec) {}
+   public CheckpointRecord(BasicLogRecord rec) {
+      lsn = rec.lsn();
+   }
    
    /** 
     * Writes a checkpoint record to the log.
@@ -26,9 +31,21 @@ class CheckpointRecord implements LogRecord {
     * and nothing else.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {CHECKPOINT};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return INT_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, CHECKPOINT);
+   }
+   
+   public long lsn() {
+      return lsn;
    }
    
    public int op() {
@@ -43,6 +60,14 @@ class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
    
+   /**
+    * Returns a negative value, because checkpoint records
+    * are not chained to any transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
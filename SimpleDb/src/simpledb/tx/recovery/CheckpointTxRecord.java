@@ -0,0 +1,106 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+
+/**
+ * The CKPT_TX log record, which lists a transaction that was
+ * active during a nonquiescent checkpoint, and the LSN of its START record.
+ */
+class CheckpointTxRecord implements LogRecord {
+   private int txnum;
+   private long startlsn;
+   private long lsn = -1;
+   
+   /**
+    * Creates a record for an active transaction.
+    * @param txnum the ID of the transaction
+    * @param startlsn the LSN of the transaction's START record
+    */
+   public CheckpointTxRecord(int txnum, long startlsn) {
+      this.txnum = txnum;
+      this.startlsn = startlsn;
+   }
+   
+   /**
+    * Creates a log record by reading two other values from the log.
+    * @param rec the basic log record
+    */
+   public CheckpointTxRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      startlsn = rec.nextLong();
+      lsn = rec.lsn();
+   }
+   
+   /** 
+    * Writes a checkpoint transaction record to the log.
+    * This log record contains the CKPT_TX operator,
+    * followed by the transaction id and the LSN of its START record.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return 2 * INT_SIZE + LONG_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, CKPT_TX);
+      page.setInt(pos + INT_SIZE, txnum);
+      page.setLong(pos + 2 * INT_SIZE, startlsn);
+   }
+   
+   public long lsn() {
+      return lsn;
+   }
+   
+   public int op() {
+      return CKPT_TX;
+   }
+   
+   /**
+    * The record belongs to the checkpoint rather than to the
+    * transaction it lists, and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a negative value, because checkpoint records
+    * are not chained to any transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
+   /**
+    * Returns the id of the transaction that was active.
+    * @return the transaction id
+    */
+   public int activeTx() {
+      return txnum;
+   }
+   
+   /**
+    * Returns the LSN of the START record of the active transaction.
+    * @return the start LSN
+    */
+   public long startLSN() {
+      return startlsn;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+   
+   public String toString() {
+      return "<CKPT_TX " + txnum + " " + startlsn + ">";
+   }
+}
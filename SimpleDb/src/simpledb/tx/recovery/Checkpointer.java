@@ -0,0 +1,52 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A background thread that takes a nonquiescent checkpoint
+ * at a fixed interval (see {@link RecoveryMgr#checkpoint()}).
+ * Transactions keep running while a checkpoint is taken.
+ */
+class Checkpointer extends Thread {
+   private long interval;
+   private volatile boolean stopped = false;
+   
+   /**
+    * Creates a checkpointer.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   Checkpointer(long interval) {
+      super("simpledb-checkpointer");
+      this.interval = interval;
+      setDaemon(true);
+   }
+   
+   @Override
+   public void run() {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(interval);
+      long deadline = System.nanoTime() + nanos;
+      while (!stopped) {
+         long left = deadline - System.nanoTime();
+         if (left > 0) {
+            LockSupport.parkNanos(this, left);
+            continue;
+         }
+         try {
+            RecoveryMgr.checkpoint();
+         }
+         catch (RuntimeException e) {
+            // the next checkpoint will be tried after the interval
+         }
+         deadline = System.nanoTime() + nanos;
+      }
+   }
+   
+   /**
+    * Stops the checkpointer; a checkpoint in progress is completed.
+    */
+   void shutdown() {
+      stopped = true;
+      LockSupport.unpark(this);
+   }
+}
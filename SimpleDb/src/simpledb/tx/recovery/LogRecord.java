@@ -1,19 +1,28 @@
 package simpledb.tx.recovery;
 
+import simpledb.log.LogEncodable;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
 /**
  * The interface implemented by each type of log record.
+ * Each record encodes its own values into the log
+ * (see {@link LogEncodable}).
  * @author Edward Sciore
  */
-public interface LogRecord {
+public interface LogRecord extends LogEncodable {
    /**
-    * The six different types of log record
+    * The different types of log record.
+    * CHECKPOINT is a quiescent checkpoint; the CKPT_ records
+    * make up a nonquiescent (fuzzy) checkpoint.
+    * SETBYTES holds the images of a range of bytes.
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
+      SETINT = 4, SETSTRING = 5,
+      CKPT_BEGIN = 6, CKPT_TX = 7,
+      CKPT_PAGE = 8, CKPT_END = 9,
+      SETBYTES = 10;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +30,14 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
+   
+   /**
+    * Returns the LSN of the record: the LSN it was given when
+    * it was written, or the LSN at which it was read from the log.
+    * @return the LSN of the record, or a negative value if it has not been written
+    */
+   long lsn();
    
    /**
     * Returns the log record's type. 
@@ -36,11 +52,23 @@ public interface LogRecord {
     */
    int txNumber();
    
+   /**
+    * Returns the LSN of the previous record of the same transaction.
+    * The records of a transaction are chained together by these LSNs,
+    * from its last record back to its START record, so that the
+    * transaction can be rolled back without reading the rest of the log.
+    * @return the LSN of the previous record of the transaction, or a negative
+    * value if the record is a START record or belongs to no transaction
+    */
+   long prevLSN();
+   
    /**
     * Undoes the operation encoded by this log record.
     * The only log record types for which this method
-    * does anything interesting are SETINT and SETSTRING.
+    * does anything interesting are SETINT, SETSTRING and SETBYTES,
+    * which log a compensation record before restoring the
+    * old value (see {@link UpdateRecord}).
     * @param txnum the id of the transaction that is performing the undo.
     */
    void undo(int txnum);
-}
\ No newline at end of file
+}
\ No newline at end of file
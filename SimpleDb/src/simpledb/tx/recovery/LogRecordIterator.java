@@ -7,14 +7,32 @@ import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
+ * from the log, in reverse order unless another
+ * iterator of the log manager is given.
  * Unlike the similar class 
  * {@link simpledb.log.LogIterator LogIterator},  
  * this class understands the meaning of the log records.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+   private Iterator<BasicLogRecord> iter;
+   
+   /**
+    * Creates an iterator that reads the log backward from its end.
+    */
+   LogRecordIterator() {
+      this(SimpleDB.logMgr().iterator());
+   }
+   
+   /**
+    * Creates an iterator for the records returned by
+    * the specified iterator of the log manager
+    * (see {@link simpledb.log.LogMgr#forwardIterator(long)}).
+    * @param iter an iterator of basic log records
+    */
+   LogRecordIterator(Iterator<BasicLogRecord> iter) {
+      this.iter = iter;
+   }
    
    public boolean hasNext() {
       return iter.hasNext();
@@ -23,14 +41,28 @@ class LogRecordIterator implements Iterator<LogRecord> {
    /**
     * Constructs a log record from the values in the 
     * current basic log record.
+    * @return the next log record, or null if no more records
+    * @see #toLogRecord(BasicLogRecord)
+    */
+   public LogRecord next() {
+      return toLogRecord(iter.next());
+   }
+   
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+   
+   /**
+    * Constructs a log record from the values in the 
+    * specified basic log record.
     * The method first reads an integer, which denotes
     * the type of the log record.  Based on that type,
     * the method calls the appropriate LogRecord constructor
     * to read the remaining values.
-    * @return the next log record, or null if no more records
+    * @param rec the basic log record
+    * @return the log record, or null if its type is unknown
     */
-   public LogRecord next() {
-      BasicLogRecord rec = iter.next();
+   static LogRecord toLogRecord(BasicLogRecord rec) {
       int op = rec.nextInt();
       switch (op) {
          case CHECKPOINT:
@@ -45,12 +77,18 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case CKPT_BEGIN:
+            return new CheckpointBeginRecord(rec);
+         case CKPT_TX:
+            return new CheckpointTxRecord(rec);
+         case CKPT_PAGE:
+            return new CheckpointPageRecord(rec);
+         case CKPT_END:
+            return new CheckpointEndRecord(rec);
+         case SETBYTES:
+            return new SetBytesRecord(rec);
          default:
             return null;
       }
-   } 
-   
-   public void remove() {
-      throw new UnsupportedOperationException();
    }
 }
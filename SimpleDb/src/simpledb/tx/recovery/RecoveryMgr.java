@@ -3,54 +3,276 @@ package simpledb.tx.recovery;
 import static simpledb.tx.recovery.LogRecord.*;
 import simpledb.file.Block;
 import simpledb.buffer.Buffer;
+import simpledb.log.LogCursor;
 import simpledb.server.SimpleDB;
+import simpledb.tx.concurrency.UndoChain;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * The class also keeps the table of active transactions, and takes
+ * the nonquiescent checkpoints that bound the work of recovery
+ * (see {@link #checkpoint()}).
+ * <p>
+ * Each update record holds the old and the new value of the update,
+ * so that the buffer manager may write a modified page at any time
+ * once its log records are on disk (steal), and a committing
+ * transaction only forces its COMMIT record (no force).
+ * Restart recovery follows ARIES: an analysis pass finds the unfinished
+ * transactions and the blocks that may be out of date, a redo pass
+ * repeats the logged history of those blocks, and an undo pass rolls back
+ * the unfinished transactions, logging a compensation record for each undone
+ * update (see {@link UpdateRecord}), so that a crash during recovery
+ * never undoes an update twice.
+ * The log is read by a single thread, which hands the redo and undo of each
+ * update to the worker of its block (see {@link RecoveryWorkers}), so that
+ * different blocks are restored in parallel.
+ * <p>
+ * Each record of a transaction holds the LSN of the transaction's previous record,
+ * and the recovery manager remembers the LSN of the last one, so that rolling back
+ * the transaction follows this chain from its end to its START record instead of
+ * reading every record of the log written since the transaction started.
+ * The update records of a transaction with few updates are also kept in memory,
+ * and its rollback does not read the log at all.
+ * <p>
+ * A read-only transaction modifies only temporary tables, whose updates
+ * are never logged, so it has nothing to redo or undo: its recovery manager
+ * writes no START, COMMIT or ROLLBACK record, does not enter it in the table
+ * of active transactions, and never touches the log manager.
  * @author Edward Sciore
  */
-public class RecoveryMgr {
+public class RecoveryMgr implements UndoChain {
+   private static Map<Integer,Long> activeTxs = new ConcurrentHashMap<Integer,Long>();
+   // held shared while a transaction logs its start or end and updates the table,
+   // and exclusively while a checkpoint logs its beginning and copies the table
+   private static ReadWriteLock txTableLock = new ReentrantReadWriteLock();
+   private static volatile long truncationLSN = -1;
+   private static Checkpointer checkpointer;
+   private static volatile RecoveryStats lastRecovery;
    private int txnum;
+   private boolean readOnly;
+   private long startlsn;
+   private volatile long lastlsn; // also read by the version store (see rebuildBeforeImage)
+   private List<UpdateRecord> undoCache = new ArrayList<UpdateRecord>();
 
    /**
-    * Creates a recovery manager for the specified transaction.
+    * Creates a recovery manager for the specified transaction,
+    * and enters the transaction in the table of active transactions.
     * @param txnum the ID of the specified transaction
     */
    public RecoveryMgr(int txnum) {
+      this(txnum, false);
+   }
+
+   /**
+    * Creates a recovery manager for the specified transaction,
+    * which may be read-only. A read-only transaction is not
+    * entered in the table of active transactions.
+    * @param txnum the ID of the specified transaction
+    * @param readOnly true if the transaction modifies only temporary tables
+    */
+   public RecoveryMgr(int txnum, boolean readOnly) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      this.readOnly = readOnly;
+      if (readOnly) {
+         startlsn = lastlsn = -1;
+         return;
+      }
+      txTableLock.readLock().lock();
+      try {
+         startlsn = new StartRecord(txnum).writeToLog();
+         activeTxs.put(txnum, startlsn);
+         lastlsn = startlsn;
+      }
+      finally {
+         txTableLock.readLock().unlock();
+      }
    }
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * The modified buffers of the transaction are not flushed;
+    * recovery redoes their updates from the log if necessary.
+    * A read-only transaction has nothing to commit.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      if (readOnly)
+         return;
+      long lsn = logEnd(new CommitRecord(txnum, lastlsn));
+      SimpleDB.logMgr().groupFlush(lsn);
    }
 
    /**
-    * Writes a rollback record to the log, and flushes it to disk.
+    * Rolls back the transaction, writes a rollback record to the log,
+    * and flushes it to disk.
+    * A read-only transaction has nothing to roll back.
     */
    public void rollback() {
+      if (readOnly)
+         return;
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      long lsn = logEnd(new RollbackRecord(txnum, lastlsn));
+      SimpleDB.logMgr().groupFlush(lsn);
    }
 
    /**
     * Recovers uncompleted transactions from the log,
-    * then writes a quiescent checkpoint record to the log and flushes it.
+    * then flushes the recovered buffers, and writes
+    * a quiescent checkpoint record to the log and flushes it.
     */
    public void recover() {
       doRecover();
       SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      long lsn = new CheckpointRecord().writeToLog();
       SimpleDB.logMgr().flush(lsn);
+      truncationLSN = lsn;
+   }
+
+   /**
+    * Writes the record that ends the transaction,
+    * and removes the transaction from the table of active transactions.
+    * @return the LSN of the record
+    */
+   private long logEnd(LogRecord rec) {
+      txTableLock.readLock().lock();
+      try {
+         lastlsn = rec.writeToLog();
+         activeTxs.remove(txnum);
+         return lastlsn;
+      }
+      finally {
+         txTableLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Takes a nonquiescent checkpoint while transactions keep running.
+    * The checkpoint consists of a CKPT_BEGIN record,
+    * a CKPT_TX record for each active transaction,
+    * a CKPT_PAGE record for each dirty block of the buffer pool,
+    * and a CKPT_END record, which is flushed to disk.
+    * Before the CKPT_END record is written, the database files are forced
+    * onto the disk: a page that was written since it was last dirtied is
+    * left out of the CKPT_PAGE records, and the log that could redo it
+    * may be archived, so the write must be durable by then.
+    * The table of active transactions is copied as the CKPT_BEGIN
+    * record is written, so that the listed transactions are exactly
+    * those that started and had not finished before it.
+    * <p>
+    * Recovery never reads the log before the returned LSN, which is the
+    * smallest of the LSN of the CKPT_BEGIN record, the LSNs of the START
+    * records of the active transactions, and the recovery LSNs of the dirty
+    * blocks; nor does the rollback of an active transaction. The log segments
+    * before the one holding it are therefore archived
+    * (see {@link simpledb.log.LogMgr#archiveBefore(long)}).
+    * @return the LSN before which the log is no longer needed
+    */
+   public static synchronized long checkpoint() {
+      long begin;
+      Map<Integer,Long> txs;
+      txTableLock.writeLock().lock();
+      try {
+         begin = new CheckpointBeginRecord().writeToLog();
+         txs = new HashMap<Integer,Long>(activeTxs);
+      }
+      finally {
+         txTableLock.writeLock().unlock();
+      }
+      long oldest = begin;
+      for (Map.Entry<Integer,Long> e : txs.entrySet()) {
+         new CheckpointTxRecord(e.getKey(), e.getValue()).writeToLog();
+         oldest = Math.min(oldest, e.getValue());
+      }
+      for (Map.Entry<Block,Long> e : SimpleDB.bufferMgr().dirtyPages().entrySet()) {
+         new CheckpointPageRecord(e.getKey(), e.getValue()).writeToLog();
+         oldest = Math.min(oldest, e.getValue());
+      }
+      SimpleDB.fileMgr().forceAll();
+      long end = new CheckpointEndRecord(begin).writeToLog();
+      SimpleDB.logMgr().flush(end);
+      truncationLSN = oldest;
+      SimpleDB.logMgr().archiveBefore(oldest);
+      return oldest;
+   }
+
+   /**
+    * Rebuilds the contents that the specified block had before the
+    * transaction modified it, by following the chain of the transaction's
+    * records back from the last one, and writing the old value of each
+    * update of the block into the image.
+    * The compensation records of a rollback in progress are undone like
+    * the other updates, since their old values are the values they replaced.
+    * This method is called by another thread than the transaction's,
+    * which holds the latch of the block's buffer, so every update of the
+    * block is complete. The last LSN may not yet include the latest CLR,
+    * but a CLR only writes back the old value of the update it undoes,
+    * which is written into the image anyway.
+    * A new cursor is created if the transaction's last record is beyond
+    * the specified one; the last LSN is read only once, since the records
+    * logged after it do not concern the latched block.
+    * @see simpledb.tx.concurrency.UndoChain#rebuildBeforeImage(Block, byte[], LogCursor)
+    */
+   public LogCursor rebuildBeforeImage(Block blk, byte[] image, LogCursor cursor) {
+      long lsn = lastlsn;
+      if (cursor == null || lsn > cursor.end())
+         cursor = SimpleDB.logMgr().cursor();
+      while (lsn >= 0) {
+         LogRecord rec = LogRecordIterator.toLogRecord(cursor.read(lsn));
+         if (rec instanceof UpdateRecord && ((UpdateRecord) rec).block().equals(blk))
+            ((UpdateRecord) rec).undoInto(image);
+         lsn = rec.prevLSN();
+      }
+      return cursor;
+   }
+
+   /**
+    * Returns the LSN of the last log record of the transaction.
+    * @return the LSN of the transaction's last record
+    */
+   public long lastLSN() {
+      return lastlsn;
+   }
+
+   /**
+    * Returns the LSN computed by the most recent checkpoint,
+    * before which the log is no longer needed by recovery.
+    * @return the truncation LSN, or a negative value if no checkpoint has been taken
+    */
+   public static long truncationLSN() {
+      return truncationLSN;
+   }
+
+   /**
+    * Returns the measurements of the most recent restart recovery.
+    * @return the recovery statistics, or null if the database has not been recovered
+    */
+   public static RecoveryStats lastRecovery() {
+      return lastRecovery;
+   }
+
+   /**
+    * Starts a background thread that takes a nonquiescent
+    * checkpoint at the specified interval.
+    * Any checkpointer started earlier is stopped first.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   public static synchronized void startCheckpointer(long interval) {
+      stopCheckpointer();
+      checkpointer = new Checkpointer(interval);
+      checkpointer.start();
+   }
 
+   /**
+    * Stops the checkpointer, if one is running.
+    */
+   public static synchronized void stopCheckpointer() {
+      if (checkpointer != null) {
+         checkpointer.shutdown();
+         checkpointer = null;
+      }
    }
 
    /**
@@ -61,13 +283,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+         return logUpdate(new SetIntRecord(txnum, lastlsn, blk, offset, oldval, newval));
    }
 
    /**
@@ -78,54 +300,259 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+         return logUpdate(new SetStringRecord(txnum, lastlsn, blk, offset, oldval, newval));
+   }
+
+   /**
+    * Writes a setbytes record to the log, and returns its lsn.
+    * If the transaction has just appended the block, the record is
+    * redo-only, and does not hold the bytes being overwritten
+    * (see {@link SetBytesRecord}).
+    * Updates to temporary files are not logged; instead, a
+    * "dummy" negative lsn is returned.
+    * @param buff the buffer containing the page
+    * @param offset the offset of the bytes in the page
+    * @param newval the bytes to be written, no more than {@link #maxBytes(Block, boolean)}
+    * @param redoOnly whether the transaction appended the block
+    */
+   public long setBytes(Buffer buff, int offset, byte[] newval, boolean redoOnly) {
+      Block blk = buff.block();
+      if (isTempBlock(blk))
+         return -1;
+      byte[] oldval = redoOnly ? null : buff.getBytes(offset, newval.length);
+      return logUpdate(new SetBytesRecord(txnum, lastlsn, blk, offset, oldval, newval));
+   }
+
+   /**
+    * Returns the largest number of bytes of the specified block
+    * that can be logged by a single setbytes record.
+    * @param blk the block containing the bytes
+    * @param redoOnly whether the transaction appended the block
+    * @return the largest number of bytes per record
+    */
+   public int maxBytes(Block blk, boolean redoOnly) {
+      return SetBytesRecord.maxLength(blk, redoOnly);
+   }
+
+   /**
+    * Writes an update record of the transaction to the log,
+    * and keeps it for the rollback of the transaction, unless it is
+    * redo-only or the transaction has made too many updates to keep.
+    * @param rec the update record
+    * @return the LSN of the record
+    */
+   private long logUpdate(UpdateRecord rec) {
+      lastlsn = rec.writeToLog();
+      if (undoCache != null && !rec.isRedoOnly()) {
+         if (undoCache.size() < SimpleDB.UNDO_CACHE_RECORDS)
+            undoCache.add(rec);
+         else
+            undoCache = null;
+      }
+      return lastlsn;
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
-    * until it finds the transaction's START record.
+    * If the update records of the transaction are all in memory,
+    * the method undoes them in reverse order.
+    * Otherwise, it reads the records of the transaction by following
+    * their previous LSNs back from the last one, calling undo() for each,
+    * until it reaches the transaction's START record.
+    * Updates that a compensation record shows to be
+    * undone already are skipped.
+    * Each compensation record is chained after the last record of the transaction.
     */
    private void doRollback() {
+      if (undoCache != null) {
+         for (int i = undoCache.size() - 1; i >= 0; i--)
+            lastlsn = undoCache.get(i).undo(txnum, lastlsn);
+         return;
+      }
+      Set<Long> compensated = new HashSet<Long>();
+      LogCursor cursor = SimpleDB.logMgr().cursor();
+      long lsn = lastlsn;
+      while (lsn >= 0) {
+         LogRecord rec = LogRecordIterator.toLogRecord(cursor.read(lsn));
+         if (mustUndo(rec, compensated))
+            lastlsn = ((UpdateRecord) rec).undo(txnum, lastlsn);
+         lsn = rec.prevLSN();
+      }
+   }
+
+   /**
+    * Does a complete database recovery in three passes.
+    * <p>
+    * The log is first read backward from its end, only as far as the last
+    * quiescent CHECKPOINT record, the CKPT_BEGIN record of the last complete
+    * nonquiescent checkpoint, or the start of the log, whichever comes first.
+    * Checkpoint records after the last CKPT_END belong to a checkpoint that
+    * did not complete, and are ignored.
+    * <p>
+    * The analysis pass starts from the tables of that checkpoint,
+    * and reads the records after its CKPT_BEGIN record forward,
+    * adding the transactions that start and removing those that finish,
+    * and adding each updated block to the dirty-page table with the LSN
+    * of its first update.
+    * The redo pass then reads the log forward again, from the smallest
+    * recovery LSN of the dirty-page table, and redoes each update
+    * of a block in the table from the block's recovery LSN on,
+    * whichever transaction made it. Since the updates are physical, redoing an
+    * update that is already on disk does no harm.
+    * The undo pass reads the log backward from its end, and undoes the updates
+    * of the transactions that remain unfinished, up to their START records;
+    * each then gets a ROLLBACK record, once all of the undoing is done.
+    * No pass keeps the records it reads; each reads the log in large
+    * sequential chunks instead. Since the undo pass handles all of the
+    * unfinished transactions in one scan, it does not follow their chains
+    * of previous LSNs; the compensation record of an update is chained to
+    * the update, and the ROLLBACK records have no previous LSN.
+    * <p>
+    * The redo and undo of an update are performed by the worker of its block.
+    * Since a worker performs its tasks in order, the undo pass does not
+    * have to wait for the redo pass to finish.
+    */
+   private void doRecover() {
+      long t0 = System.nanoTime();
+      Set<Integer> unfinished = new HashSet<Integer>();
+      Map<Block,Long> dirtyPages = new HashMap<Block,Long>();
+      long begin = 0;
+      boolean endSeen = false;
       Iterator<LogRecord> iter = new LogRecordIterator();
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
+         if (rec.lsn() >= startlsn)
+            continue; // the records of this transaction
+         if (rec.op() == CHECKPOINT) {
+            begin = rec.lsn();
+            break;
+         }
+         if (rec.op() == CKPT_END)
+            endSeen = true;
+         else if (endSeen && rec.op() == CKPT_TX) {
+            CheckpointTxRecord ckpt = (CheckpointTxRecord) rec;
+            unfinished.add(ckpt.activeTx());
+         }
+         else if (endSeen && rec.op() == CKPT_PAGE) {
+            CheckpointPageRecord ckpt = (CheckpointPageRecord) rec;
+            dirtyPages.put(ckpt.block(), ckpt.recoveryLSN());
+         }
+         else if (endSeen && rec.op() == CKPT_BEGIN) {
+            begin = rec.lsn();
+            break;
+         }
+      }
+      long t1 = System.nanoTime();
+
+      // analysis
+      long records = 0;
+      iter = new LogRecordIterator(SimpleDB.logMgr().forwardIterator(begin));
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         if (rec.lsn() >= startlsn)
+            break;
+         records++;
+         if (rec.op() == START)
+            unfinished.add(rec.txNumber());
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            unfinished.remove(rec.txNumber());
+         else if (rec instanceof UpdateRecord) {
+            Block blk = ((UpdateRecord) rec).block();
+            Long reclsn = dirtyPages.get(blk);
+            if (reclsn == null || rec.lsn() < reclsn)
+               dirtyPages.put(blk, rec.lsn());
+         }
+      }
+
+      long t2 = System.nanoTime();
+
+      // redo
+      int threads = Math.max(1, Math.min(SimpleDB.RECOVERY_THREADS, SimpleDB.bufferMgr().available()));
+      RecoveryWorkers workers = new RecoveryWorkers(threads);
+      long redone = 0, undone = 0;
+      long t3, t4;
+      Set<Integer> losers = new HashSet<Integer>(unfinished);
+      try {
+         if (!dirtyPages.isEmpty()) {
+            iter = new LogRecordIterator(SimpleDB.logMgr().forwardIterator(Collections.min(dirtyPages.values())));
+            while (iter.hasNext()) {
+               LogRecord rec = iter.next();
+               if (rec.lsn() >= startlsn)
+                  break;
+               if (rec instanceof UpdateRecord) {
+                  final UpdateRecord update = (UpdateRecord) rec;
+                  Long reclsn = dirtyPages.get(update.block());
+                  if (reclsn != null && rec.lsn() >= reclsn) {
+                     workers.submit(update.block(), new Runnable() {
+                        public void run() {
+                           update.redo(txnum);
+                        }
+                     });
+                     redone++;
+                  }
+               }
+            }
+         }
+         t3 = System.nanoTime();
+
+         // undo
+         Set<Long> compensated = new HashSet<Long>();
+         iter = new LogRecordIterator();
+         while (iter.hasNext() && !unfinished.isEmpty()) {
+            final LogRecord rec = iter.next();
+            Integer tx = rec.txNumber();
+            if (rec.lsn() >= startlsn || !unfinished.contains(tx))
+               continue;
             if (rec.op() == START)
-               return;
-            rec.undo(txnum);
+               unfinished.remove(tx);
+            else if (mustUndo(rec, compensated)) {
+               workers.submit(((UpdateRecord) rec).block(), new Runnable() {
+                  public void run() {
+                     rec.undo(txnum);
+                  }
+               });
+               undone++;
+            }
          }
+         workers.await();
+      }
+      finally {
+         workers.shutdown();
       }
+      for (int tx : losers)
+         new RollbackRecord(tx, -1).writeToLog();
+      t4 = System.nanoTime();
+      lastRecovery = new RecoveryStats(workers.size(), records, redone, undone, losers.size(),
+                                       t1 - t0, t2 - t1, t3 - t2, t4 - t3);
    }
 
    /**
-    * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * Determines whether the specified record of a transaction being
+    * rolled back must be undone. The log is read backward, so the
+    * compensation records of the transaction are read before the
+    * updates they undid; the method adds the LSN that a compensation
+    * record undid to the specified set, and does not undo an update
+    * whose LSN is in it. Records that are not updates, and redo-only
+    * updates, have nothing to undo.
+    * @param rec a log record of the transaction
+    * @param compensated the LSNs of the updates already undone
+    * @return true if the record is an update that must be undone
     */
-   private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
-      while (iter.hasNext()) {
-         LogRecord rec = iter.next();
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(txnum);
+   private static boolean mustUndo(LogRecord rec, Set<Long> compensated) {
+      if (!(rec instanceof UpdateRecord))
+         return false;
+      UpdateRecord update = (UpdateRecord) rec;
+      if (update.isCompensation()) {
+         compensated.add(update.undoneLSN());
+         return false;
       }
+      return !update.isRedoOnly() && !compensated.contains(rec.lsn());
    }
 
    /**
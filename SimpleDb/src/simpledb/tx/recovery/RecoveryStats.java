@@ -0,0 +1,91 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The measurements of a restart recovery: how much of the log it read,
+ * how much work each pass did, and how long each pass took.
+ */
+public class RecoveryStats {
+   private int threads;
+   private long records, redone, undone, losers;
+   private long readNanos, analysisNanos, redoNanos, undoNanos;
+
+   RecoveryStats(int threads, long records, long redone, long undone, long losers,
+                 long readNanos, long analysisNanos, long redoNanos, long undoNanos) {
+      this.threads = threads;
+      this.records = records;
+      this.redone = redone;
+      this.undone = undone;
+      this.losers = losers;
+      this.readNanos = readNanos;
+      this.analysisNanos = analysisNanos;
+      this.redoNanos = redoNanos;
+      this.undoNanos = undoNanos;
+   }
+
+   /** Returns the number of worker threads that redid and undid updates. */
+   public int threads() {
+      return threads;
+   }
+
+   /** Returns the number of log records read. */
+   public long records() {
+      return records;
+   }
+
+   /** Returns the number of updates redone. */
+   public long redone() {
+      return redone;
+   }
+
+   /** Returns the number of updates undone. */
+   public long undone() {
+      return undone;
+   }
+
+   /** Returns the number of unfinished transactions that were rolled back. */
+   public long losers() {
+      return losers;
+   }
+
+   /** Returns the time spent reading the log backward, in nanoseconds. */
+   public long readNanos() {
+      return readNanos;
+   }
+
+   /** Returns the time spent in the analysis pass, in nanoseconds. */
+   public long analysisNanos() {
+      return analysisNanos;
+   }
+
+   /**
+    * Returns the time spent in the redo pass, in nanoseconds. With several workers,
+    * the pass only hands the updates to them, and the time they take to finish
+    * is counted in the undo pass, which waits for them.
+    */
+   public long redoNanos() {
+      return redoNanos;
+   }
+
+   /** Returns the time spent in the undo pass, in nanoseconds. */
+   public long undoNanos() {
+      return undoNanos;
+   }
+
+   /** Returns the total time of the recovery, in milliseconds. */
+   public long totalMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(readNanos + analysisNanos + redoNanos + undoNanos);
+   }
+
+   @Override
+   public String toString() {
+      return "RecoveryStats [threads=" + threads + ", records=" + records + ", redone=" + redone
+            + ", undone=" + undone + ", losers=" + losers
+            + ", readMillis=" + TimeUnit.NANOSECONDS.toMillis(readNanos)
+            + ", analysisMillis=" + TimeUnit.NANOSECONDS.toMillis(analysisNanos)
+            + ", redoMillis=" + TimeUnit.NANOSECONDS.toMillis(redoNanos)
+            + ", undoMillis=" + TimeUnit.NANOSECONDS.toMillis(undoNanos)
+            + ", totalMillis=" + totalMillis() + "]";
+   }
+}
@@ -0,0 +1,114 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import simpledb.file.Block;
+
+/**
+ * The worker threads that redo and undo log records during restart recovery.
+ * The blocks are partitioned among the workers by their hash code,
+ * and each worker performs the tasks for its blocks one at a time,
+ * in the order in which they were submitted. Thus the updates of a block
+ * are redone and undone in log order, while different blocks are restored
+ * in parallel.
+ * With a single worker, the tasks are performed by the submitting thread.
+ */
+class RecoveryWorkers {
+   private ExecutorService[] partitions;
+   private AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+   /**
+    * Creates the specified number of workers.
+    * @param n the number of workers
+    */
+   RecoveryWorkers(int n) {
+      if (n <= 1)
+         return;
+      partitions = new ExecutorService[n];
+      for (int i = 0; i < n; i++) {
+         final String name = "simpledb-recovery-" + i;
+         partitions[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, name);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+   }
+
+   /**
+    * Returns the number of workers.
+    * @return the number of workers
+    */
+   int size() {
+      return partitions == null ? 1 : partitions.length;
+   }
+
+   /**
+    * Hands a task for the specified block to the worker of the block.
+    * @param blk the block that the task modifies
+    * @param task the task
+    */
+   void submit(Block blk, final Runnable task) {
+      if (partitions == null) {
+         task.run();
+         return;
+      }
+      int i = (blk.hashCode() & Integer.MAX_VALUE) % partitions.length;
+      partitions[i].execute(new Runnable() {
+         public void run() {
+            if (failure.get() != null)
+               return;
+            try {
+               task.run();
+            }
+            catch (RuntimeException e) {
+               failure.compareAndSet(null, e);
+            }
+         }
+      });
+   }
+
+   /**
+    * Waits until the workers have performed every task submitted so far.
+    * If a task failed, its exception is thrown; the tasks submitted after
+    * the failure are skipped.
+    */
+   void await() {
+      if (partitions == null)
+         return;
+      Future<?>[] done = new Future<?>[partitions.length];
+      for (int i = 0; i < partitions.length; i++)
+         done[i] = partitions[i].submit(new Runnable() {
+            public void run() {}
+         });
+      try {
+         for (Future<?> f : done)
+            f.get();
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("interrupted during recovery");
+      }
+      catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+      RuntimeException e = failure.get();
+      if (e != null)
+         throw e;
+   }
+
+   /**
+    * Stops the workers.
+    */
+   void shutdown() {
+      if (partitions == null)
+         return;
+      for (ExecutorService p : partitions)
+         p.shutdown();
+   }
+}
@@ -1,5 +1,7 @@
 package simpledb.tx.recovery;
 
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
 import simpledb.log.BasicLogRecord;
 
 /**
@@ -8,32 +10,53 @@ import simpledb.log.BasicLogRecord;
  */
 class RollbackRecord implements LogRecord {
    private int txnum;
+   private long prevlsn;
+   private long lsn = -1;
    
    /**
     * Creates a new rollback log record for the specified transaction.
     * @param txnum the ID of the specified transaction
+    * @param prevlsn the LSN of the previous record of the transaction
     */
-   public RollbackRecord(int txnum) {
+   public RollbackRecord(int txnum, long prevlsn) {
       this.txnum = txnum;
+      this.prevlsn = prevlsn;
    }
    
    /**
-    * Creates a log record by reading one other value from the log.
+    * Creates a log record by reading two other values from the log.
     * @param rec the basic log record
     */
    public RollbackRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
+      prevlsn = rec.nextLong();
+      lsn = rec.lsn();
    }
    
    /** 
     * Writes a rollback record to the log.
     * This log record contains the ROLLBACK operator,
-    * followed by the transaction id.
+    * followed by the transaction id and the LSN of the
+    * previous record of the transaction.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {ROLLBACK, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return 2 * INT_SIZE + LONG_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, ROLLBACK);
+      page.setInt(pos + INT_SIZE, txnum);
+      page.setLong(pos + 2 * INT_SIZE, prevlsn);
+   }
+   
+   public long lsn() {
+      return lsn;
    }
    
    public int op() {
@@ -44,6 +67,10 @@ class RollbackRecord implements LogRecord {
       return txnum;
    }
    
+   public long prevLSN() {
+      return prevlsn;
+   }
+   
    /**
     * Does nothing, because a rollback record
     * contains no undo information.
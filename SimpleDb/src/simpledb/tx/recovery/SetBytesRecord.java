@@ -0,0 +1,230 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import static simpledb.file.Page.*;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogMgr;
+
+/**
+ * The SETBYTES log record, which holds the image of a range of bytes
+ * of a block before and after an update, such as the records of a
+ * B-tree page that were shifted to make room for a new one.
+ * A range is logged by a single record instead of one record per value.
+ * <p>
+ * A redo-only record has no old image. It is written for a block that
+ * its transaction has just appended, and that nothing refers to unless
+ * the transaction commits; if the transaction rolls back, the contents
+ * of the block do not matter, so the record is redone but never undone.
+ */
+class SetBytesRecord implements UpdateRecord {
+   private static final byte[] NO_IMAGE = new byte[0];
+   private int txnum, offset;
+   private byte[] oldval, newval;
+   private Block blk;
+   private long prevlsn;
+   private long undonelsn = -1;
+   private long lsn = -1;
+
+   /**
+    * Creates a new setbytes log record.
+    * @param txnum the ID of the specified transaction
+    * @param prevlsn the LSN of the previous record of the transaction
+    * @param blk the block containing the bytes
+    * @param offset the offset of the bytes in the block
+    * @param oldval the bytes being overwritten, or null for a redo-only record
+    * @param newval the new bytes
+    */
+   public SetBytesRecord(int txnum, long prevlsn, Block blk, int offset, byte[] oldval, byte[] newval) {
+      this.txnum = txnum;
+      this.prevlsn = prevlsn;
+      this.blk = blk;
+      this.offset = offset;
+      this.oldval = (oldval == null) ? NO_IMAGE : oldval;
+      this.newval = newval;
+   }
+
+   /**
+    * Creates a compensation log record, which undoes
+    * the setbytes record having the specified LSN.
+    * @param txnum the ID of the transaction whose update is undone
+    * @param prevlsn the LSN of the previous record of the transaction
+    * @param blk the block containing the bytes
+    * @param offset the offset of the bytes in the block
+    * @param oldval the bytes being overwritten
+    * @param newval the restored bytes
+    * @param undonelsn the LSN of the undone record
+    */
+   public SetBytesRecord(int txnum, long prevlsn, Block blk, int offset, byte[] oldval, byte[] newval, long undonelsn) {
+      this(txnum, prevlsn, blk, offset, oldval, newval);
+      this.undonelsn = undonelsn;
+   }
+
+   /**
+    * Creates a log record by reading eight other values from the log.
+    * @param rec the basic log record
+    */
+   public SetBytesRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      prevlsn = rec.nextLong();
+      String filename = rec.nextString();
+      int blknum = rec.nextInt();
+      blk = new Block(filename, blknum);
+      offset = rec.nextInt();
+      oldval = rec.nextBytes();
+      newval = rec.nextBytes();
+      undonelsn = rec.nextLong();
+      lsn = rec.lsn();
+   }
+
+   /**
+    * Returns the largest number of bytes that a single setbytes record
+    * of the specified block can hold, so that the record fits in a block
+    * of the log.
+    * @param blk the block containing the bytes
+    * @param redoOnly whether the record has no old image
+    * @return the largest length of the new image
+    */
+   static int maxLength(Block blk, boolean redoOnly) {
+      int fixed = 6 * INT_SIZE + STR_SIZE(blk.fileName().length()) + 2 * LONG_SIZE;
+      int room = SimpleDB.fileMgr().blockSize() - LogMgr.HEADER_SIZE - LogMgr.FRAME_SIZE - 1 - fixed;
+      return redoOnly ? room : room / 2;
+   }
+
+   /**
+    * Writes a setBytes record to the log.
+    * This log record contains the SETBYTES operator,
+    * followed by the transaction id, the LSN of the previous
+    * record of the transaction, the filename, number,
+    * and offset of the modified block, the previous
+    * and new bytes at that offset, each preceded by its length,
+    * and the LSN of the undone record if it is a CLR.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+
+   public int encodedSize() {
+      return 6 * INT_SIZE + STR_SIZE(blk.fileName().length())
+            + oldval.length + newval.length + 2 * LONG_SIZE;
+   }
+
+   public void encode(Page page, int pos) {
+      page.setInt(pos, SETBYTES);
+      page.setInt(pos + INT_SIZE, txnum);
+      page.setLong(pos + 2 * INT_SIZE, prevlsn);
+      pos += 2 * INT_SIZE + LONG_SIZE;
+      page.setString(pos, blk.fileName());
+      pos += STR_SIZE(blk.fileName().length());
+      page.setInt(pos, blk.number());
+      page.setInt(pos + INT_SIZE, offset);
+      pos += 2 * INT_SIZE;
+      page.setInt(pos, oldval.length);
+      page.setBytes(pos + INT_SIZE, oldval);
+      pos += INT_SIZE + oldval.length;
+      page.setInt(pos, newval.length);
+      page.setBytes(pos + INT_SIZE, newval);
+      pos += INT_SIZE + newval.length;
+      page.setLong(pos, undonelsn);
+   }
+
+   public long lsn() {
+      return lsn;
+   }
+
+   public int op() {
+      return SETBYTES;
+   }
+
+   public int txNumber() {
+      return txnum;
+   }
+
+   public long prevLSN() {
+      return prevlsn;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public boolean isCompensation() {
+      return undonelsn >= 0;
+   }
+
+   public boolean isRedoOnly() {
+      return oldval.length == 0;
+   }
+
+   public long undoneLSN() {
+      return undonelsn;
+   }
+
+   public String toString() {
+      String clr = isCompensation() ? " CLR " + undonelsn : "";
+      String redo = isRedoOnly() ? " REDO" : "";
+      return "<SETBYTES " + txnum + " " + blk + " " + offset + " " + newval.length + redo + clr + ">";
+   }
+
+   /**
+    * Writes the new bytes saved in the log record into the block.
+    * The method pins a buffer to the specified block,
+    * calls setBytes with the LSN of this record, and unpins the buffer.
+    * @see simpledb.tx.recovery.UpdateRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setBytes(offset, newval, txnum, lsn);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Replaces the specified bytes with the old bytes saved in the log record,
+    * chaining the CLR to this record.
+    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    */
+   public void undo(int txnum) {
+      undo(txnum, lsn);
+   }
+
+   /**
+    * Replaces the specified bytes with the old bytes saved in the log record.
+    * The method pins a buffer to the specified block, writes a CLR
+    * for the restored bytes, calls setBytes with the LSN of the CLR,
+    * and unpins the buffer.
+    * A CLR or a redo-only record is never undone, so the method does nothing for one.
+    * @see simpledb.tx.recovery.UpdateRecord#undo(int, long)
+    */
+   public long undo(int txnum, long prevlsn) {
+      if (isCompensation() || isRedoOnly())
+         return prevlsn;
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      long clrlsn;
+      buff.latchExclusive();
+      try {
+         byte[] curval = buff.getBytes(offset, oldval.length);
+         clrlsn = new SetBytesRecord(this.txnum, prevlsn, blk, offset, curval, oldval, lsn).writeToLog();
+         buff.setBytes(offset, oldval, txnum, clrlsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+      buffMgr.unpin(buff);
+      return clrlsn;
+   }
+
+   /**
+    * Writes the old image saved in the log record into the image of the block.
+    * A redo-only record has no old image, and writes nothing.
+    * @see simpledb.tx.recovery.UpdateRecord#undoInto(byte[])
+    */
+   public void undoInto(byte[] image) {
+      System.arraycopy(oldval, 0, image, offset, oldval.length);
+   }
+}
@@ -1,79 +1,205 @@
 package simpledb.tx.recovery;
 
+import java.nio.ByteBuffer;
 import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
+import static simpledb.file.Page.*;
 import simpledb.file.Block;
+import simpledb.file.Page;
 import simpledb.log.BasicLogRecord;
 
-class SetStringRecord implements LogRecord {
+class SetStringRecord implements UpdateRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
-   
+   private long prevlsn;
+   private long undonelsn = -1;
+   private long lsn = -1;
+
    /**
     * Creates a new setstring log record.
     * @param txnum the ID of the specified transaction
+    * @param prevlsn the LSN of the previous record of the transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value being overwritten
+    * @param newval the new value
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, long prevlsn, Block blk, int offset, String oldval, String newval) {
       this.txnum = txnum;
+      this.prevlsn = prevlsn;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
-   
+
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a compensation log record, which undoes
+    * the setstring record having the specified LSN.
+    * @param txnum the ID of the transaction whose update is undone
+    * @param prevlsn the LSN of the previous record of the transaction
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param oldval the value being overwritten
+    * @param newval the restored value
+    * @param undonelsn the LSN of the undone record
+    */
+   public SetStringRecord(int txnum, long prevlsn, Block blk, int offset, String oldval, String newval, long undonelsn) {
+      this(txnum, prevlsn, blk, offset, oldval, newval);
+      this.undonelsn = undonelsn;
+   }
+
+   /**
+    * Creates a log record by reading eight other values from the log.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
+      prevlsn = rec.nextLong();
       String filename = rec.nextString();
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
+      undonelsn = rec.nextLong();
+      lsn = rec.lsn();
    }
-   
-   /** 
+
+   /**
     * Writes a setString record to the log.
     * This log record contains the SETSTRING operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * string value at that offset.
+    * followed by the transaction id, the LSN of the previous
+    * record of the transaction, the filename, number,
+    * and offset of the modified block, the previous
+    * and new string values at that offset,
+    * and the LSN of the undone record if it is a CLR.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
    }
    
+   public int encodedSize() {
+      return 4 * INT_SIZE + STR_SIZE(blk.fileName().length())
+            + STR_SIZE(oldval.length()) + STR_SIZE(newval.length()) + 2 * LONG_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, SETSTRING);
+      page.setInt(pos + INT_SIZE, txnum);
+      page.setLong(pos + 2 * INT_SIZE, prevlsn);
+      pos += 2 * INT_SIZE + LONG_SIZE;
+      page.setString(pos, blk.fileName());
+      pos += STR_SIZE(blk.fileName().length());
+      page.setInt(pos, blk.number());
+      page.setInt(pos + INT_SIZE, offset);
+      pos += 2 * INT_SIZE;
+      page.setString(pos, oldval);
+      pos += STR_SIZE(oldval.length());
+      page.setString(pos, newval);
+      pos += STR_SIZE(newval.length());
+      page.setLong(pos, undonelsn);
+   }
+
+   public long lsn() {
+      return lsn;
+   }
+
    public int op() {
       return SETSTRING;
    }
-   
+
    public int txNumber() {
       return txnum;
    }
-   
+
+   public long prevLSN() {
+      return prevlsn;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public boolean isCompensation() {
+      return undonelsn >= 0;
+   }
+
+   public boolean isRedoOnly() {
+      return false;
+   }
+
+   public long undoneLSN() {
+      return undonelsn;
+   }
+
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      String clr = isCompensation() ? " CLR " + undonelsn : "";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + clr + ">";
    }
-   
-   /** 
-    * Replaces the specified data value with the value saved in the log record.
+
+   /**
+    * Writes the new value saved in the log record into the block.
     * The method pins a buffer to the specified block,
-    * calls setString to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
+    * calls setString with the LSN of this record, and unpins the buffer.
+    * @see simpledb.tx.recovery.UpdateRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setString(offset, newval, txnum, lsn);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Replaces the specified data value with the old value saved in the log record,
+    * chaining the CLR to this record.
     * @see simpledb.tx.recovery.LogRecord#undo(int)
     */
    public void undo(int txnum) {
+      undo(txnum, lsn);
+   }
+
+   /**
+    * Replaces the specified data value with the old value saved in the log record.
+    * The method pins a buffer to the specified block, writes a CLR
+    * for the restored value, calls setString with the LSN of the CLR,
+    * and unpins the buffer.
+    * A CLR is never undone, so the method does nothing for one.
+    * @see simpledb.tx.recovery.UpdateRecord#undo(int, long)
+    */
+   public long undo(int txnum, long prevlsn) {
+      if (isCompensation())
+         return prevlsn;
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      long clrlsn;
+      buff.latchExclusive();
+      try {
+         String curval = buff.getString(offset);
+         clrlsn = new SetStringRecord(this.txnum, prevlsn, blk, offset, curval, oldval, lsn).writeToLog();
+         buff.setString(offset, oldval, txnum, clrlsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
       buffMgr.unpin(buff);
+      return clrlsn;
+   }
+
+   /**
+    * Writes the old value saved in the log record into the image of the block,
+    * encoded as by {@link Page#setString(int, String)}.
+    * @see simpledb.tx.recovery.UpdateRecord#undoInto(byte[])
+    */
+   public void undoInto(byte[] image) {
+      byte[] byteval = oldval.getBytes();
+      ByteBuffer buf = ByteBuffer.wrap(image);
+      buf.putInt(offset, byteval.length);
+      buf.position(offset + INT_SIZE);
+      buf.put(byteval);
    }
 }
@@ -1,9 +1,12 @@
 package simpledb.tx.recovery;
 
+import static simpledb.file.Page.INT_SIZE;
+import simpledb.file.Page;
 import simpledb.log.BasicLogRecord;
 
 class StartRecord implements LogRecord {
    private int txnum;
+   private long lsn = -1;
    
    /**
     * Creates a new start log record for the specified transaction.
@@ -19,6 +22,7 @@ class StartRecord implements LogRecord {
     */
    public StartRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
+      lsn = rec.lsn();
    }
    
    /** 
@@ -27,9 +31,22 @@ class StartRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {START, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      lsn = logMgr.append(this);
+      return lsn;
+   }
+   
+   public int encodedSize() {
+      return 2 * INT_SIZE;
+   }
+   
+   public void encode(Page page, int pos) {
+      page.setInt(pos, START);
+      page.setInt(pos + INT_SIZE, txnum);
+   }
+   
+   public long lsn() {
+      return lsn;
    }
    
    public int op() {
@@ -40,6 +57,14 @@ class StartRecord implements LogRecord {
       return txnum;
    }
    
+   /**
+    * Returns a negative value, because a start record
+    * is the first record of its transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+   
    /**
     * Does nothing, because a start record
     * contains no undo information.
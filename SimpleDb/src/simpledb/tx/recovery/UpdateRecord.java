@@ -0,0 +1,71 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+
+/**
+ * The interface implemented by the log records that modify a block:
+ * the SETINT, SETSTRING and SETBYTES records.
+ * An update record holds both the value it overwrote and the value it wrote,
+ * so that recovery can redo it as well as undo it.
+ * <p>
+ * Undoing an update writes a compensation log record (CLR), which is
+ * an update record of the same type whose new value is the old value
+ * of the undone record, and which remembers the LSN of the record it undid.
+ * A CLR is redone like any other update, but is never undone itself,
+ * and the update that it undid is not undone again.
+ * Neither is a redo-only update, which holds no old value
+ * (see {@link SetBytesRecord}).
+ */
+interface UpdateRecord extends LogRecord {
+   /**
+    * Returns the block modified by the update.
+    * @return the modified block
+    */
+   Block block();
+   
+   /**
+    * Returns true if the record compensates an earlier update.
+    * @return true if the record is a CLR
+    */
+   boolean isCompensation();
+   
+   /**
+    * Returns true if the update holds no old value,
+    * and so is redone but never undone.
+    * @return true if the record is redo-only
+    */
+   boolean isRedoOnly();
+   
+   /**
+    * Returns the LSN of the update that this CLR undoes.
+    * @return the undone LSN, or a negative value if the record is not a CLR
+    */
+   long undoneLSN();
+   
+   /**
+    * Writes the new value of the update into its block again.
+    * The buffer is marked as modified by the specified transaction,
+    * and gets the LSN of the record.
+    * @param txnum the id of the transaction that is performing the redo
+    */
+   void redo(int txnum);
+   
+   /**
+    * Restores the old value of the update, logging a CLR whose previous
+    * LSN is the specified one, so that the CLR joins the chain of records
+    * of the transaction that is rolled back.
+    * The method does nothing for a CLR.
+    * @param txnum the id of the transaction that is performing the undo
+    * @param prevlsn the LSN of the last record of the rolled-back transaction
+    * @return the LSN of the CLR, or the specified LSN if no CLR was written
+    */
+   long undo(int txnum, long prevlsn);
+   
+   /**
+    * Writes the old value of the update into the specified image
+    * of its block, without logging anything.
+    * The method does nothing for a redo-only update.
+    * @param image a copy of the contents of the modified block
+    */
+   void undoInto(byte[] image);
+}